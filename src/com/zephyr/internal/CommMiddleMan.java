@@ -43,6 +43,44 @@ public interface CommMiddleMan {
 	 */
 	public Short readShort();
 	
+	/**
+	 * Returns how many bytes are already waiting to be read, so a whole frame can be read at once without waiting on data
+	 * that hasn't come in yet. Devices that can't tell, like I2C and SPI where the Pixy only sends when asked, return -1.
+	 * 
+	 * @return The number of bytes waiting, or -1 if the device can't tell
+	 */
+	public default int available()
+	{
+		return -1;
+	}
+	
+	/**
+	 * Reads a run of shorts at once, which is how frames are read. Devices that can read 
+	 * more than one short at a time should override this so the whole run is read and decoded in one go, 
+	 * the default just calls readShort over and over.
+	 * 
+	 * @param words The array to put the shorts in
+	 * @param offset Where in the array to put the first short
+	 * @param count The number of shorts to read
+	 * @return The number of shorts that were read, less than count if the data ran out or a read failed
+	 */
+	public default int readWords(short[] words, int offset, int count)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			Short word = readShort();
+			
+			if(word == null)
+			{
+				return i;
+			}
+			
+			words[offset + i] = word;
+		}
+		
+		return count;
+	}
+	
 	/**
 	 * Writes a series of bytes to the communication device type.
 	 * 
@@ -60,5 +98,13 @@ public interface CommMiddleMan {
 	 * @param buffer The ByteBuffer to write
 	 */
 	public void write(ByteBuffer buffer);
+	
+	/**
+	 * Releases the communication hardware so it can be opened again. Nothing should be read or written
+	 * after this is called. Devices that don't hold on to any hardware don't need to do anything.
+	 */
+	public default void free()
+	{
+	}
 
 }
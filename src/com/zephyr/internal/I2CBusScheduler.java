@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import java.util.EnumMap;
+import java.util.function.BooleanSupplier;
+
+import edu.wpi.first.wpilibj.I2C;
+
+/**
+ * Decides who gets to use an I2C bus when more than one device is on it. Without this, every device's driver talks on the bus
+ * whenever it feels like it, and a Pixy reading a long frame word by word holds up the gyro and color sensor sitting next to it.
+ *
+ * Every device registers once with a priority and a time budget, and then wraps each transaction it makes in transaction()
+ * (or acquire() and release()). Only one transaction runs at a time. When a transaction finishes, the scheduler picks which
+ * device goes next right then and hands the bus straight to it, so the waiting devices never have to agree among themselves
+ * on whose turn it is. The waiting device with the highest priority goes next, except that a device that has already used up its budget for the current period goes after every device
+ * that hasn't. Devices with the same priority take turns, whichever has been waiting longest goes first, so a device registered
+ * early can't keep the bus from one registered later. A device over its budget still gets the bus when nobody else wants it, so
+ * no bus time is wasted.
+ *
+ * This only works if transactions are short, which is why I2CComm reads the Pixy in slices instead of a whole frame at once.
+ * Every device keeps track of how much bus time it's used and how long it's waited, so priorities and budgets can be tuned.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class I2CBusScheduler {
+	
+	/**
+	 * The default length of a budget period, in seconds, one robot loop
+	 */
+	public static final double DEFAULT_PERIOD = 0.02;
+	
+	/**
+	 * The most devices that can be registered on one bus
+	 */
+	public static final int MAX_DEVICES = 16;
+	
+	/**
+	 * A budget that is never used up
+	 */
+	public static final double UNLIMITED_BUDGET = Double.POSITIVE_INFINITY;
+	
+	//The shared scheduler for each port
+	private static final EnumMap<I2C.Port, I2CBusScheduler> schedulers = new EnumMap<>(I2C.Port.class);
+	
+	//The length of a budget period in nanoseconds, and when the current one started
+	private long periodNanos;
+	private long periodStart;
+	
+	//The number of devices registered
+	private int deviceCount;
+	
+	//The name, priority and budget (in nanoseconds per period) of each device
+	private String[] names;
+	private int[] priorities;
+	private long[] budgets;
+	
+	//How much bus time each device has used this period
+	private long[] usedThisPeriod;
+	
+	//How many transactions each device has waiting for the bus
+	private int[] waiting;
+	
+	//Where each waiting device is in line, smaller numbers have been waiting longer, and the next place in line to hand out
+	private long[] waitingSince;
+	private long nextInLine;
+	
+	//The device using the bus, or -1 if it's free, and when its transaction started
+	private int owner;
+	private long ownerStart;
+	
+	//The device the bus has been handed to but that hasn't picked it up yet, or -1 if the bus is up for grabs
+	private int grantee;
+	
+	//The accounting for each device
+	private long[] busTimes;
+	private long[] transactions;
+	private long[] waitTimes;
+	private long[] maxWaitTimes;
+	private long[] overBudgetPeriods;
+	
+	/**
+	 * Returns the scheduler shared by everything on an I2C port, creating it if this is the first time it's been asked for
+	 *
+	 * @param port The I2C port
+	 * @return The scheduler for that port
+	 */
+	public static I2CBusScheduler forPort(I2C.Port port)
+	{
+		synchronized(schedulers)
+		{
+			I2CBusScheduler scheduler = schedulers.get(port);
+			
+			if(scheduler == null)
+			{
+				scheduler = new I2CBusScheduler();
+				schedulers.put(port, scheduler);
+			}
+			
+			return scheduler;
+		}
+	}
+	
+	/**
+	 * Creates a new I2CBusScheduler. Usually you want the shared one from forPort instead.
+	 */
+	public I2CBusScheduler()
+	{
+		names = new String[MAX_DEVICES];
+		priorities = new int[MAX_DEVICES];
+		budgets = new long[MAX_DEVICES];
+		usedThisPeriod = new long[MAX_DEVICES];
+		waiting = new int[MAX_DEVICES];
+		waitingSince = new long[MAX_DEVICES];
+		
+		busTimes = new long[MAX_DEVICES];
+		transactions = new long[MAX_DEVICES];
+		waitTimes = new long[MAX_DEVICES];
+		maxWaitTimes = new long[MAX_DEVICES];
+		overBudgetPeriods = new long[MAX_DEVICES];
+		
+		deviceCount = 0;
+		owner = -1;
+		grantee = -1;
+		
+		setPeriod(DEFAULT_PERIOD);
+	}
+	
+	/**
+	 * Sets how long a budget period is, every device's budget is refilled at the start of each period
+	 *
+	 * @param period The length of a period in seconds
+	 */
+	public synchronized void setPeriod(double period)
+	{
+		periodNanos = Math.max(1, (long) (period * 1e9));
+		periodStart = System.nanoTime();
+	}
+	
+	/**
+	 * Adds a device to the bus
+	 *
+	 * @param name A name for the device, only used for reporting
+	 * @param priority The device's priority, higher numbers go first
+	 * @param budget The most bus time the device gets each period before everything else goes ahead of it, in seconds
+	 * @return The device's ID, used for everything else
+	 */
+	public synchronized int register(String name, int priority, double budget)
+	{
+		if(deviceCount >= MAX_DEVICES)
+		{
+			throw new IllegalStateException("No more than " + MAX_DEVICES + " devices can share an I2C bus");
+		}
+		
+		int device = deviceCount++;
+		
+		names[device] = name;
+		
+		setPriority(device, priority);
+		setBudget(device, budget);
+		
+		return device;
+	}
+	
+	/**
+	 * Changes a device's priority
+	 *
+	 * @param device The device's ID
+	 * @param priority The device's priority, higher numbers go first
+	 */
+	public synchronized void setPriority(int device, int priority)
+	{
+		priorities[device] = priority;
+	}
+	
+	/**
+	 * Changes a device's budget
+	 *
+	 * @param device The device's ID
+	 * @param budget The most bus time the device gets each period before everything else goes ahead of it, in seconds
+	 */
+	public synchronized void setBudget(int device, double budget)
+	{
+		budgets[device] = budget == UNLIMITED_BUDGET ? Long.MAX_VALUE : Math.max(0, (long) (budget * 1e9));
+	}
+	
+	/**
+	 * Runs a transaction once it's the device's turn on the bus
+	 *
+	 * @param device The device's ID
+	 * @param transaction The transaction, this is passed the return value of the WPILib I2C call
+	 * @return What the transaction returned, for I2C calls true means the transfer was aborted
+	 */
+	public boolean transaction(int device, BooleanSupplier transaction)
+	{
+		acquire(device);
+		
+		try
+		{
+			return transaction.getAsBoolean();
+		}
+		finally
+		{
+			release(device);
+		}
+	}
+	
+	/**
+	 * Waits until it's the device's turn on the bus. Every acquire has to be followed by a release, even if the transaction fails.
+	 *
+	 * @param device The device's ID
+	 */
+	public synchronized void acquire(int device)
+	{
+		long start = System.nanoTime();
+		
+		//Get in line, unless another transaction from this device is already holding a place
+		if(waiting[device]++ == 0)
+		{
+			waitingSince[device] = nextInLine++;
+		}
+		
+		boolean interrupted = false;
+		
+		//Wait until the bus is free and either handed to us or not handed to anyone, which only happens when nobody else was waiting
+		while(owner != -1 || (grantee != -1 && grantee != device))
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				//Keep waiting rather than leave the caller without the bus it thinks it has, the interrupt is passed on afterwards
+				interrupted = true;
+			}
+		}
+		
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		waiting[device]--;
+		
+		//Anything else this device has waiting goes to the back of the line behind everyone else
+		waitingSince[device] = nextInLine++;
+		
+		owner = device;
+		grantee = -1;
+		ownerStart = System.nanoTime();
+		
+		long waited = ownerStart - start;
+		
+		waitTimes[device] += waited;
+		maxWaitTimes[device] = Math.max(maxWaitTimes[device], waited);
+	}
+	
+	/**
+	 * Gives up the bus after a transaction
+	 *
+	 * @param device The device's ID
+	 */
+	public synchronized void release(int device)
+	{
+		if(owner != device)
+		{
+			throw new IllegalStateException(names[device] + " released an I2C bus it didn't have");
+		}
+		
+		long now = System.nanoTime();
+		long used = now - ownerStart;
+		
+		rollPeriod(now);
+		
+		//Count the period it went over in, only the first time
+		if(usedThisPeriod[device] <= budgets[device] && usedThisPeriod[device] + used > budgets[device])
+		{
+			overBudgetPeriods[device]++;
+		}
+		
+		usedThisPeriod[device] += used;
+		busTimes[device] += used;
+		transactions[device]++;
+		
+		owner = -1;
+		
+		//Pick who goes next once, here, and hand the bus to them. Everyone waiting wakes up, but only that device takes the bus.
+		grantee = nextDevice();
+		
+		if(grantee != -1)
+		{
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Returns the number of devices registered
+	 *
+	 * @return The number of devices
+	 */
+	public synchronized int getDeviceCount()
+	{
+		return deviceCount;
+	}
+	
+	/**
+	 * Returns the name a device was registered with
+	 *
+	 * @param device The device's ID
+	 * @return The device's name
+	 */
+	public synchronized String getName(int device)
+	{
+		return names[device];
+	}
+	
+	/**
+	 * Returns the total time a device has spent on the bus
+	 *
+	 * @param device The device's ID
+	 * @return The bus time in seconds
+	 */
+	public synchronized double getBusTime(int device)
+	{
+		return busTimes[device] / 1e9;
+	}
+	
+	/**
+	 * Returns the number of transactions a device has made
+	 *
+	 * @param device The device's ID
+	 * @return The number of transactions
+	 */
+	public synchronized long getTransactionCount(int device)
+	{
+		return transactions[device];
+	}
+	
+	/**
+	 * Returns the total time a device has spent waiting for the bus
+	 *
+	 * @param device The device's ID
+	 * @return The wait time in seconds
+	 */
+	public synchronized double getWaitTime(int device)
+	{
+		return waitTimes[device] / 1e9;
+	}
+	
+	/**
+	 * Returns the longest a device has waited for the bus
+	 *
+	 * @param device The device's ID
+	 * @return The longest wait in seconds
+	 */
+	public synchronized double getMaxWaitTime(int device)
+	{
+		return maxWaitTimes[device] / 1e9;
+	}
+	
+	/**
+	 * Returns the number of periods a device has gone over its budget in
+	 *
+	 * @param device The device's ID
+	 * @return The number of periods it went over budget
+	 */
+	public synchronized long getOverBudgetCount(int device)
+	{
+		return overBudgetPeriods[device];
+	}
+	
+	/**
+	 * Returns how much of the bus's time a device has used in the current period
+	 *
+	 * @param device The device's ID
+	 * @return The bus time used this period, in seconds
+	 */
+	public synchronized double getBusTimeThisPeriod(int device)
+	{
+		rollPeriod(System.nanoTime());
+		
+		return usedThisPeriod[device] / 1e9;
+	}
+	
+	/**
+	 * Clears the accounting for every device
+	 */
+	public synchronized void resetStats()
+	{
+		for(int device = 0; device < deviceCount; device++)
+		{
+			busTimes[device] = 0;
+			transactions[device] = 0;
+			waitTimes[device] = 0;
+			maxWaitTimes[device] = 0;
+			overBudgetPeriods[device] = 0;
+		}
+	}
+	
+	/**
+	 * Picks which waiting device should get the bus next
+	 *
+	 * @return The device's ID, or -1 if nothing is waiting
+	 */
+	private int nextDevice()
+	{
+		rollPeriod(System.nanoTime());
+		
+		int best = -1;
+		boolean bestInBudget = false;
+		
+		for(int device = 0; device < deviceCount; device++)
+		{
+			if(waiting[device] == 0)
+			{
+				continue;
+			}
+			
+			boolean inBudget = usedThisPeriod[device] < budgets[device];
+			
+			//Anything still in its budget beats anything that isn't, after that it comes down to priority, and then to whichever
+			//has been waiting longest
+			if(best == -1 || (inBudget && !bestInBudget)
+					|| (inBudget == bestInBudget && priorities[device] > priorities[best])
+					|| (inBudget == bestInBudget && priorities[device] == priorities[best] && waitingSince[device] < waitingSince[best]))
+			{
+				best = device;
+				bestInBudget = inBudget;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Starts a new period and refills every budget if the current period is over
+	 */
+	private void rollPeriod(long now)
+	{
+		if(now - periodStart < periodNanos)
+		{
+			return;
+		}
+		
+		//Skip ahead to the period we're in now, there's no point stepping through ones where the bus sat idle
+		periodStart += (now - periodStart) / periodNanos * periodNanos;
+		
+		for(int device = 0; device < deviceCount; device++)
+		{
+			usedThisPeriod[device] = 0;
+		}
+	}
+}
@@ -14,32 +14,104 @@
 package com.zephyr.internal;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import edu.wpi.first.wpilibj.I2C;
 
 /**
- * This class acts as a bridge between the SerialPort communication profile
+ * This class acts as a bridge between the I2C communication profile
  * and the rest of the code. It implements the CommMiddleMan interface to 
  * make it so that it can be used in conjunction with the other two communication
  * styles dynamically without having to have code specific to each communication 
  * type
  * 
+ * Rather than one I2C transaction for every word, the Pixy is read a slice at a time into a read ahead buffer 
+ * and words are handed out of that. If the bus is shared with other devices through an I2CBusScheduler, each 
+ * slice is its own transaction, so reading a long frame never holds the bus for long.
+ * 
  * @author Bradley Bickford
  *
  */
 public class I2CComm implements CommMiddleMan{
 
+	/**
+	 * The default number of bytes read in each transaction
+	 */
+	public static final int DEFAULT_SLICE_BYTES = 16;
+	
 	//The I2C object that we'll be using to communicate with the Pixy
 	private I2C i2c;
 	
+	//The scheduler that decides when we get the bus, and our ID with it, null if the bus isn't shared
+	private I2CBusScheduler scheduler;
+	private int device;
+	
+	//The bytes read ahead of what's been asked for, and where the next unread one is
+	private byte[] readAhead;
+	
+	//Where each slice is read into before it's added to the read ahead buffer
+	private byte[] slice;
+	private int readPosition;
+	private int readLimit;
+	
+	//The number of bytes to read in each transaction
+	private int sliceBytes;
+	
+	//Puts the bytes together into words, I2C is little endian
+	private WordDecoder decoder;
+	
 	/**
 	 * Creates a new I2CComm object to work with
 	 * 
 	 * @param i2c The I2C port to work with
 	 */
 	public I2CComm(I2C i2c)
+	{
+		this(i2c, null, -1);
+	}
+	
+	/**
+	 * Creates a new I2CComm object that shares the bus with other devices
+	 * 
+	 * @param i2c The I2C port to work with
+	 * @param scheduler The scheduler for the bus, or null if the bus isn't shared
+	 * @param device The ID the scheduler gave us when we registered
+	 */
+	public I2CComm(I2C i2c, I2CBusScheduler scheduler, int device)
 	{
 		this.i2c = i2c;
+		this.scheduler = scheduler;
+		this.device = device;
+		
+		decoder = new WordDecoder(ByteOrder.LITTLE_ENDIAN);
+		
+		setSliceBytes(DEFAULT_SLICE_BYTES);
+	}
+	
+	/**
+	 * Sets how many bytes are read in each transaction. Bigger slices are less overhead, smaller ones hold the bus 
+	 * for less time. Anything already read ahead is thrown away.
+	 * 
+	 * @param sliceBytes The number of bytes to read at once, at least 2
+	 */
+	public void setSliceBytes(int sliceBytes)
+	{
+		this.sliceBytes = Math.max(2, sliceBytes);
+		
+		readAhead = new byte[this.sliceBytes];
+		slice = new byte[this.sliceBytes];
+		readPosition = 0;
+		readLimit = 0;
+	}
+	
+	/**
+	 * Returns the ID the scheduler knows this device by
+	 * 
+	 * @return The device ID, or -1 if the bus isn't shared
+	 */
+	public int getDeviceId()
+	{
+		return device;
 	}
 	
 	@Override
@@ -47,12 +119,13 @@ public class I2CComm implements CommMiddleMan{
 	 * {@inheritDoc}
 	 */
 	public Byte readByte() {
-		byte[] data = new byte[1];
+		//Read 1 byte from the I2C bus and return it, if nothing answered there's no byte to return
+		if(!fill(1))
+		{
+			return null;
+		}
 		
-		//Read 1 byte from the I2C bus and return it
-		i2c.readOnly(data, 1);
-		
-		return data[0];
+		return readAhead[readPosition++];
 	}
 
 	@Override
@@ -60,27 +133,57 @@ public class I2CComm implements CommMiddleMan{
 	 * {@inheritDoc}
 	 */
 	public Short readShort() {
-		byte[] data = new byte[2];
-		
-		//Read two bytes from the I2C buffer and convert it to a short
-		i2c.readOnly(data, 2);
+		//Read two bytes from the I2C buffer and convert it to a short, if nothing answered there's no short to return
+		if(!fill(2))
+		{
+			return null;
+		}
 		
-		short retVal = 0;
+		short retVal = decoder.toWord(readAhead[readPosition], readAhead[readPosition + 1]);
 		
-		retVal |= data[1] << 8;
-		retVal |= data[0];
+		readPosition += 2;
 		
 		return retVal;
 		
 	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readWords(short[] words, int offset, int count) {
+		int read = 0;
+		
+		//Decode every whole word in the read ahead buffer at once, then read another slice if that wasn't enough
+		while(read < count && fill(2))
+		{
+			int available = Math.min((readLimit - readPosition) / 2, count - read);
+			
+			decoder.decode(readAhead, readPosition, words, offset + read, available);
+			
+			readPosition += available * 2;
+			read += available;
+		}
+		
+		return read;
+	}
 
 	@Override
 	/**
 	 * {@inheritDoc}
 	 */
 	public void write(byte[] bytes) {
-		i2c.writeBulk(bytes);
+		//Take the bus directly instead of through transaction(), so a servo command doesn't create a lambda every time
+		acquireBus();
 		
+		try
+		{
+			i2c.writeBulk(bytes);
+		}
+		finally
+		{
+			releaseBus();
+		}
 	}
 
 	@Override
@@ -88,8 +191,112 @@ public class I2CComm implements CommMiddleMan{
 	 * {@inheritDoc}
 	 */
 	public void write(ByteBuffer buffer) {
-		i2c.writeBulk(buffer, buffer.capacity());
+		acquireBus();
 		
+		try
+		{
+			i2c.writeBulk(buffer, buffer.capacity());
+		}
+		finally
+		{
+			releaseBus();
+		}
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void free() {
+		i2c.free();
+	}
+	
+	/**
+	 * Makes sure there are at least a number of bytes in the read ahead buffer, reading another slice if there aren't
+	 * 
+	 * @param count The number of bytes needed, no more than the slice size
+	 * @return True if the bytes are there, false if the read was aborted
+	 */
+	private boolean fill(int count)
+	{
+		int buffered = readLimit - readPosition;
+		
+		if(buffered >= count)
+		{
+			return true;
+		}
+		
+		//Move what's left of the last slice to the front and read the next slice after it
+		System.arraycopy(readAhead, readPosition, readAhead, 0, buffered);
+		
+		readPosition = 0;
+		readLimit = buffered;
+		
+		int length = sliceBytes - buffered;
+		
+		boolean aborted;
+		
+		//Every slice is its own transaction on the bus
+		acquireBus();
+		
+		try
+		{
+			aborted = readSlice(buffered, length);
+		}
+		finally
+		{
+			releaseBus();
+		}
+		
+		//If nothing answered, whatever was left over is from before the Pixy went away, so throw it out too
+		if(aborted)
+		{
+			readLimit = 0;
+			return false;
+		}
+		
+		readLimit = sliceBytes;
+		
+		return true;
+	}
+	
+	/**
+	 * Waits for our turn on the bus, if it's shared
+	 */
+	private void acquireBus()
+	{
+		if(scheduler != null)
+		{
+			scheduler.acquire(device);
+		}
+	}
+	
+	/**
+	 * Gives up the bus after a transaction, if it's shared
+	 */
+	private void releaseBus()
+	{
+		if(scheduler != null)
+		{
+			scheduler.release(device);
+		}
+	}
+	
+	/**
+	 * Reads the next bytes from the Pixy into the read ahead buffer
+	 * 
+	 * @return True if the transfer was aborted
+	 */
+	private boolean readSlice(int offset, int length)
+	{
+		//readOnly only reads into the start of an array, and there may be a leftover byte at the start of the buffer
+		if(i2c.readOnly(slice, length))
+		{
+			return true;
+		}
+		
+		System.arraycopy(slice, 0, readAhead, offset, length);
+		
+		return false;
 	}
-
 }
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import java.nio.ByteBuffer;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Watches over a communication device and re-creates it when the Pixy on the other end stops talking, so a cable that
+ * wiggles loose doesn't take the Pixy out for the rest of the match.
+ *
+ * The Pixy counts as alive whenever it answers at all. Any read that gets data back counts, and so does whatever is reading
+ * from the Pixy calling markHealthy when it finds a frame, even an empty one. It doesn't take a block, so a Pixy with nothing in
+ * view stays connected. check is called before every read. If the Pixy hasn't answered for longer than the deadline it's declared
+ * down, the device is freed and a new one is created from the factory. If the new one doesn't answer within the deadline either,
+ * it's freed and tried again after a backoff that doubles every attempt up to a maximum. While the device is down reads return null
+ * right away and writes are thrown away, so nothing waits on hardware that isn't there.
+ *
+ * Once the Pixy is answering again it's back within the deadline plus the maximum backoff, which is what getRecoveryTimeBound returns.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class ReconnectingComm implements CommMiddleMan{
+	
+	/**
+	 * The default time without an answer before the Pixy is declared down, in seconds
+	 */
+	public static final double DEFAULT_DEADLINE = 2.0;
+	
+	/**
+	 * The default time between the first reconnect attempts, in seconds
+	 */
+	public static final double DEFAULT_MIN_BACKOFF = 0.1;
+	
+	/**
+	 * The default longest time between reconnect attempts, in seconds
+	 */
+	public static final double DEFAULT_MAX_BACKOFF = 1.0;
+	
+	//Creates a new device every time we reconnect
+	private Supplier<CommMiddleMan> factory;
+	
+	//The device being used, null while it's down and waiting for the next attempt
+	private CommMiddleMan comm;
+	
+	//Where the time comes from, in seconds
+	private DoubleSupplier clock;
+	
+	//How long to go without an answer before declaring the Pixy down
+	private double deadline;
+	
+	//The range the time between reconnect attempts is kept in, and what it is now
+	private double minBackoff;
+	private double maxBackoff;
+	private double backoff;
+	
+	//Whether or not the Pixy is answering
+	private boolean healthy;
+	
+	//Whether or not any read has gotten data back since the last check
+	private boolean dataSeen;
+	
+	//When the Pixy last answered
+	private double lastFrameTime;
+	
+	//When the Pixy last answered, or when the current device was created if it hasn't answered since
+	private double lastHealthyTime;
+	
+	//When the Pixy was declared down, and when the next reconnect attempt is due
+	private double downTime;
+	private double nextAttemptTime;
+	
+	//How many times the Pixy has come back after being down, and how long it took
+	private int reconnectCount;
+	private double lastRecoveryTime;
+	private double longestRecoveryTime;
+	
+	/**
+	 * Creates a new ReconnectingComm
+	 *
+	 * @param comm The device to start with, or null to create one from the factory
+	 * @param factory Creates a new device, this can throw or return null if the hardware can't be opened
+	 * @param clock Where the time comes from, in seconds
+	 */
+	public ReconnectingComm(CommMiddleMan comm, Supplier<CommMiddleMan> factory, DoubleSupplier clock)
+	{
+		this.factory = factory;
+		this.clock = clock;
+		
+		deadline = DEFAULT_DEADLINE;
+		minBackoff = DEFAULT_MIN_BACKOFF;
+		maxBackoff = DEFAULT_MAX_BACKOFF;
+		backoff = minBackoff;
+		
+		//Give the first device the same chance to answer that a reconnected one gets
+		healthy = true;
+		lastHealthyTime = clock.getAsDouble();
+		lastFrameTime = lastHealthyTime;
+		
+		this.comm = comm != null ? comm : open();
+		
+		//If the hardware couldn't even be opened the first time, start out down
+		if(this.comm == null)
+		{
+			healthy = false;
+			downTime = lastHealthyTime;
+			nextAttemptTime = downTime + backoff;
+		}
+	}
+	
+	/**
+	 * Sets how long the Pixy can go without answering before it's declared down
+	 *
+	 * @param deadline The deadline in seconds
+	 */
+	public synchronized void setDeadline(double deadline)
+	{
+		this.deadline = Math.max(0, deadline);
+	}
+	
+	/**
+	 * Sets the range the time between reconnect attempts is kept in. The first attempt is made right away, then the time
+	 * between attempts starts at the minimum and doubles every attempt up to the maximum.
+	 *
+	 * @param minBackoff The time between the first attempts, in seconds
+	 * @param maxBackoff The longest time between attempts, in seconds
+	 */
+	public synchronized void setBackoff(double minBackoff, double maxBackoff)
+	{
+		this.minBackoff = Math.max(0, minBackoff);
+		this.maxBackoff = Math.max(this.minBackoff, maxBackoff);
+		
+		backoff = Math.max(this.minBackoff, Math.min(backoff, this.maxBackoff));
+	}
+	
+	/**
+	 * Returns the device currently being used
+	 *
+	 * @return The device, or null if it's down and waiting for the next reconnect attempt
+	 */
+	public synchronized CommMiddleMan getComm()
+	{
+		return comm;
+	}
+	
+	/**
+	 * Returns whether or not the Pixy is answering
+	 *
+	 * @return True if the Pixy has answered within the deadline
+	 */
+	public synchronized boolean isHealthy()
+	{
+		return healthy;
+	}
+	
+	/**
+	 * Returns how long it's been since the Pixy last answered
+	 *
+	 * @return The time since the Pixy last answered, in seconds
+	 */
+	public synchronized double getTimeSinceLastFrame()
+	{
+		return clock.getAsDouble() - lastFrameTime;
+	}
+	
+	/**
+	 * Returns how many times the Pixy has come back after being declared down
+	 *
+	 * @return The number of times it has reconnected
+	 */
+	public synchronized int getReconnectCount()
+	{
+		return reconnectCount;
+	}
+	
+	/**
+	 * Returns how long the last recovery took, from when the Pixy was declared down to when it first answered after that
+	 *
+	 * @return The last recovery time in seconds, or 0 if it has never had to recover
+	 */
+	public synchronized double getLastRecoveryTime()
+	{
+		return lastRecoveryTime;
+	}
+	
+	/**
+	 * Returns the longest any recovery has taken
+	 *
+	 * @return The longest recovery time in seconds, or 0 if it has never had to recover
+	 */
+	public synchronized double getLongestRecoveryTime()
+	{
+		return longestRecoveryTime;
+	}
+	
+	/**
+	 * Returns the longest it can take to notice the Pixy is back once it starts answering again
+	 *
+	 * @return The deadline plus the maximum backoff, in seconds
+	 */
+	public synchronized double getRecoveryTimeBound()
+	{
+		return deadline + maxBackoff;
+	}
+	
+	/**
+	 * Records that the Pixy just answered, call this whenever a frame comes in (even an empty one)
+	 */
+	public synchronized void markHealthy()
+	{
+		double now = clock.getAsDouble();
+		
+		if(!healthy)
+		{
+			healthy = true;
+			reconnectCount++;
+			
+			lastRecoveryTime = now - downTime;
+			longestRecoveryTime = Math.max(longestRecoveryTime, lastRecoveryTime);
+			
+			System.out.println("PIXY RECONNECTED AFTER " + String.format("%.2f", lastRecoveryTime) + "s");
+		}
+		
+		lastHealthyTime = now;
+		lastFrameTime = now;
+		backoff = minBackoff;
+	}
+	
+	/**
+	 * Declares the Pixy down if the deadline has passed, and reconnects if a reconnect attempt is due. Call this before reading.
+	 *
+	 * @return True if the Pixy is answering
+	 */
+	public synchronized boolean check()
+	{
+		//Anything read since the last check means the Pixy answered
+		if(dataSeen)
+		{
+			dataSeen = false;
+			markHealthy();
+		}
+		
+		double now = clock.getAsDouble();
+		
+		//The device we have hasn't answered in time, get rid of it
+		if(comm != null && now - lastHealthyTime > deadline)
+		{
+			if(healthy)
+			{
+				healthy = false;
+				downTime = now;
+				
+				//The first attempt is made right away
+				nextAttemptTime = now;
+				
+				System.out.println("PIXY CONNECTION LOST, RECONNECTING!");
+			}
+			else
+			{
+				nextAttemptTime = now + backoff;
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
+			
+			close();
+		}
+		
+		//Waiting on the backoff, try again once it's up
+		if(comm == null && now >= nextAttemptTime)
+		{
+			comm = open();
+			
+			//Give the new device the full deadline to answer
+			lastHealthyTime = now;
+			
+			if(comm == null)
+			{
+				nextAttemptTime = now + backoff;
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
+		}
+		
+		return healthy;
+	}
+	
+	@Override
+	/**
+	 * Frees the device and stops reconnecting
+	 */
+	public synchronized void free() {
+		close();
+		
+		//Don't reconnect after being freed
+		nextAttemptTime = Double.POSITIVE_INFINITY;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized int available() {
+		return comm != null ? comm.available() : 0;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized Byte readByte() {
+		Byte value = comm != null ? comm.readByte() : null;
+		
+		dataSeen |= value != null;
+		
+		return value;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized Short readShort() {
+		Short value = comm != null ? comm.readShort() : null;
+		
+		dataSeen |= value != null;
+		
+		return value;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized int readWords(short[] words, int offset, int count) {
+		int read = comm != null ? comm.readWords(words, offset, count) : 0;
+		
+		dataSeen |= read > 0;
+		
+		return read;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void write(byte[] bytes) {
+		if(comm != null)
+		{
+			comm.write(bytes);
+		}
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void write(ByteBuffer buffer) {
+		if(comm != null)
+		{
+			comm.write(buffer);
+		}
+	}
+	
+	/**
+	 * Creates a new device from the factory
+	 *
+	 * @return The new device, or null if it couldn't be created
+	 */
+	private CommMiddleMan open()
+	{
+		try
+		{
+			return factory.get();
+		}
+		catch(RuntimeException e)
+		{
+			System.out.println("PIXY COULDN'T BE OPENED! " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Frees the current device, if there is one
+	 */
+	private void close()
+	{
+		if(comm == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			comm.free();
+		}
+		catch(RuntimeException e)
+		{
+			System.out.println("PIXY COULDN'T BE FREED! " + e.getMessage());
+		}
+		
+		comm = null;
+	}
+}
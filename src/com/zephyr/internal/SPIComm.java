@@ -14,6 +14,7 @@
 package com.zephyr.internal;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import edu.wpi.first.wpilibj.SPI;
 
@@ -42,6 +43,12 @@ public class SPIComm implements CommMiddleMan{
 	//The SPI object that we'll be using to communicate with the Pixy
 	private SPI spi;
 	
+	//Puts the bytes together into words, SPI is big endian
+	private WordDecoder decoder = new WordDecoder(ByteOrder.BIG_ENDIAN);
+	
+	//Where runs of words are read into before they're decoded, grown as needed
+	private byte[] readScratch = new byte[16];
+	
 	/**
 	 * Creates a new SPIComm object to work with
 	 * 
@@ -106,13 +113,26 @@ public class SPIComm implements CommMiddleMan{
 		//should) wait for the one byte to appear
 		spi.read(true, data, 2);
 		
-		short retVal = 0;
-		
 		//SPI is Big Endian not Little Endian
-		retVal |= data[0] << 8;
-		retVal |= data[1];
+		return decoder.toWord(data[0], data[1]);
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readWords(short[] words, int offset, int count) {
+		if(readScratch.length < count * 2)
+		{
+			readScratch = new byte[count * 2];
+		}
 		
-		return retVal;
+		//Read the whole run in one transfer and decode it in one go
+		spi.read(true, readScratch, count * 2);
+		
+		decoder.decode(readScratch, 0, words, offset, count);
+		
+		return count;
 	}
 
 	@Override
@@ -130,5 +150,13 @@ public class SPIComm implements CommMiddleMan{
 	public void write(ByteBuffer buffer) {
 		spi.write(buffer, buffer.capacity());
 	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void free() {
+		spi.free();
+	}
 
 }
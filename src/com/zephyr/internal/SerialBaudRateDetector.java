@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Figures out what baud rate a Pixy connected over UART is sending at. The UART baud rate is set in PixyMon, and if the RIO
+ * is listening at a different rate all it gets is garbage. This tries each candidate baud rate from fastest to slowest, listens for
+ * a short window, and counts how many blocks in that window have valid sync words and checksums. The first (fastest) rate that
+ * parses cleanly is kept.
+ *
+ * The Pixy only sends blocks when it actually sees something, so make sure one of its signatures is in view while this runs.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class SerialBaudRateDetector {
+	
+	/**
+	 * The baud rates the Pixy supports, fastest first
+	 */
+	public static final int[] DEFAULT_CANDIDATES = {230400, 115200, 57600, 38400, 19200};
+	
+	/**
+	 * The default amount of time to listen at each baud rate, in seconds
+	 */
+	public static final double DEFAULT_WINDOW = 0.15;
+	
+	//The minimum number of valid blocks that have to be seen in a window to trust a baud rate
+	private static final int MIN_VALID_BLOCKS = 3;
+	
+	//The largest fraction of blocks that can fail their checksum before a baud rate is considered garbage
+	private static final double MAX_FAULT_RATIO = 0.1;
+	
+	//The low and high bytes of the sync words, they're sent little endian so the low byte comes first
+	private static final int SYNC_LOW = 0x55;
+	private static final int NORMAL_SYNC_HIGH = 0xAA;
+	private static final int CC_SYNC_LOW = 0x56;
+	
+	//The communication object we're working with
+	private SerialPortComm comm;
+	
+	//How long to listen at each baud rate
+	private double window;
+	
+	//The bytes received during a window
+	private byte[] buffer;
+	
+	//The results from the most recent window
+	private int bytesReceived;
+	private int syncHits;
+	private int validBlocks;
+	private int checksumFaults;
+	private double elapsed;
+	
+	/**
+	 * Creates a new SerialBaudRateDetector that listens for DEFAULT_WINDOW at each baud rate
+	 *
+	 * @param comm The SerialPortComm to detect the baud rate of, it has to have opened its own SerialPort
+	 */
+	public SerialBaudRateDetector(SerialPortComm comm)
+	{
+		this(comm, DEFAULT_WINDOW);
+	}
+	
+	/**
+	 * Creates a new SerialBaudRateDetector
+	 *
+	 * @param comm The SerialPortComm to detect the baud rate of, it has to have opened its own SerialPort
+	 * @param window How long to listen at each baud rate, in seconds
+	 */
+	public SerialBaudRateDetector(SerialPortComm comm, double window)
+	{
+		this.comm = comm;
+		this.window = window;
+		
+		//Enough room for the whole window at the fastest rate (10 bits per byte on the wire), with some to spare
+		buffer = new byte[(int) (DEFAULT_CANDIDATES[0] / 10 * window) * 2 + 64];
+	}
+	
+	/**
+	 * Tries the default candidate baud rates
+	 *
+	 * @return The baud rate that was picked, or -1 if none of them worked
+	 */
+	public int detect()
+	{
+		return detect(DEFAULT_CANDIDATES);
+	}
+	
+	/**
+	 * Tries each of the candidate baud rates in order, and leaves the SerialPortComm at the first one that parses cleanly.
+	 * If none of them work, the SerialPortComm is put back to the baud rate it started at.
+	 *
+	 * @param candidates The baud rates to try, fastest first
+	 * @return The baud rate that was picked, or -1 if none of them worked
+	 */
+	public int detect(int[] candidates)
+	{
+		int originalBaudRate = comm.getBaudRate();
+		
+		for(int i = 0; i < candidates.length; i++)
+		{
+			comm.setBaudRate(candidates[i]);
+			
+			measure();
+			
+			System.out.println("PIXY UART PROBE " + candidates[i] + " BAUD: " + validBlocks + " BLOCKS, " +
+					checksumFaults + " FAULTS, " + (int) getBytesPerSecond() + " BYTES/S");
+			
+			if(isClean())
+			{
+				return candidates[i];
+			}
+		}
+		
+		//Nothing worked, put things back the way they were
+		comm.setBaudRate(originalBaudRate);
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the number of bytes per second received during the last window, the effective throughput of the link
+	 *
+	 * @return The number of bytes per second received
+	 */
+	public double getBytesPerSecond()
+	{
+		return elapsed > 0 ? bytesReceived / elapsed : 0;
+	}
+	
+	/**
+	 * Returns the number of valid blocks per second received during the last window
+	 *
+	 * @return The number of valid blocks per second
+	 */
+	public double getBlocksPerSecond()
+	{
+		return elapsed > 0 ? validBlocks / elapsed : 0;
+	}
+	
+	/**
+	 * Returns the number of sync words found per kilobyte received during the last window. At the right baud rate this
+	 * should be high, at the wrong one they only show up by chance.
+	 *
+	 * @return The number of sync words per kilobyte
+	 */
+	public double getSyncHitRate()
+	{
+		return bytesReceived > 0 ? syncHits * 1024.0 / bytesReceived : 0;
+	}
+	
+	/**
+	 * Returns the number of valid blocks received during the last window
+	 *
+	 * @return The number of valid blocks
+	 */
+	public int getValidBlocks()
+	{
+		return validBlocks;
+	}
+	
+	/**
+	 * Returns the number of blocks that failed their checksum during the last window
+	 *
+	 * @return The number of checksum faults
+	 */
+	public int getChecksumFaults()
+	{
+		return checksumFaults;
+	}
+	
+	/**
+	 * Returns whether or not the last window parsed cleanly
+	 */
+	private boolean isClean()
+	{
+		return validBlocks >= MIN_VALID_BLOCKS && checksumFaults <= validBlocks * MAX_FAULT_RATIO;
+	}
+	
+	/**
+	 * Listens for one window at the current baud rate and counts what was received
+	 */
+	private void measure()
+	{
+		//Throw away anything left over from the last baud rate
+		comm.flush();
+		
+		bytesReceived = 0;
+		
+		double start = Timer.getFPGATimestamp();
+		double now = start;
+		
+		//Keep pulling bytes out so the receive buffer never overflows
+		while(now - start < window && bytesReceived < buffer.length)
+		{
+			int read = comm.readAvailable(buffer, bytesReceived);
+			
+			if(read == 0)
+			{
+				Timer.delay(0.005);
+			}
+			
+			bytesReceived += read;
+			now = Timer.getFPGATimestamp();
+		}
+		
+		elapsed = now - start;
+		
+		parse();
+	}
+	
+	/**
+	 * Looks through the bytes received during the window for blocks and checks them
+	 */
+	private void parse()
+	{
+		syncHits = 0;
+		validBlocks = 0;
+		checksumFaults = 0;
+		
+		int i = 0;
+		
+		//Every block needs at least the sync word and six more words
+		while(i + 1 < bytesReceived)
+		{
+			if(((buffer[i] & 0xFF) != SYNC_LOW && (buffer[i] & 0xFF) != CC_SYNC_LOW) || (buffer[i + 1] & 0xFF) != NORMAL_SYNC_HIGH)
+			{
+				i++;
+				continue;
+			}
+			
+			syncHits++;
+			
+			boolean colorCode = (buffer[i] & 0xFF) == CC_SYNC_LOW;
+			int words = colorCode ? 7 : 6;
+			int blockStart = i + 2;
+			
+			//A sync word followed by another sync word is the start of a frame, the block comes after the second one
+			if(blockStart + 1 < bytesReceived && (buffer[blockStart + 1] & 0xFF) == NORMAL_SYNC_HIGH &&
+					((buffer[blockStart] & 0xFF) == SYNC_LOW || (buffer[blockStart] & 0xFF) == CC_SYNC_LOW))
+			{
+				i = blockStart;
+				continue;
+			}
+			
+			//The window ended partway through this block
+			if(blockStart + words * 2 > bytesReceived)
+			{
+				break;
+			}
+			
+			//The checksum is the unsigned 16 bit sum of everything after it
+			int checksum = wordAt(blockStart);
+			int sum = 0;
+			
+			for(int w = 1; w < words; w++)
+			{
+				sum += wordAt(blockStart + w * 2);
+			}
+			
+			if((sum & 0xFFFF) == checksum)
+			{
+				validBlocks++;
+				i = blockStart + words * 2;
+			}
+			else
+			{
+				checksumFaults++;
+				i++;
+			}
+		}
+	}
+	
+	/**
+	 * Reads an unsigned little endian word out of the window buffer
+	 */
+	private int wordAt(int index)
+	{
+		return (buffer[index] & 0xFF) | (buffer[index + 1] & 0xFF) << 8;
+	}
+}
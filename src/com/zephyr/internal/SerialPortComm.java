@@ -14,6 +14,7 @@
 package com.zephyr.internal;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import edu.wpi.first.wpilibj.SerialPort;
 
@@ -32,6 +33,18 @@ public class SerialPortComm implements CommMiddleMan{
 	//The SerialPort object that we'll be using to communicate with the Pixy
 	private SerialPort port;
 	
+	//The port the SerialPort was opened on, only known if we opened it ourselves
+	private SerialPort.Port portId;
+	
+	//The baud rate the SerialPort was opened with, 0 if we didn't open it ourselves
+	private int baudRate;
+	
+	//Used to write ByteBuffers that don't have an array behind them
+	private byte[] writeScratch;
+	
+	//Puts the bytes together into words, UART is little endian
+	private WordDecoder decoder = new WordDecoder(ByteOrder.LITTLE_ENDIAN);
+	
 	/**
 	 * Creates a new SerialPortComm object to work with
 	 * 
@@ -40,6 +53,112 @@ public class SerialPortComm implements CommMiddleMan{
 	public SerialPortComm(SerialPort port)
 	{
 		this.port = port;
+		
+		portId = null;
+		baudRate = 0;
+	}
+	
+	/**
+	 * Creates a new SerialPortComm object that opens its own SerialPort. Unlike the other constructor,
+	 * the baud rate of a SerialPortComm created this way can be changed later.
+	 * 
+	 * @param portId The port to communicate over
+	 * @param baudRate The baud rate to open the port with
+	 */
+	public SerialPortComm(SerialPort.Port portId, int baudRate)
+	{
+		this.portId = portId;
+		this.baudRate = baudRate;
+		
+		port = new SerialPort(baudRate, portId);
+	}
+	
+	/**
+	 * Returns the baud rate the port was opened with
+	 * 
+	 * @return The baud rate, or 0 if the SerialPort was passed in already opened
+	 */
+	public int getBaudRate()
+	{
+		return baudRate;
+	}
+	
+	/**
+	 * Returns whether or not the baud rate can be changed, which is only possible if this 
+	 * SerialPortComm opened its own SerialPort
+	 * 
+	 * @return True if setBaudRate can be used
+	 */
+	public boolean canChangeBaudRate()
+	{
+		return portId != null;
+	}
+	
+	/**
+	 * Changes the baud rate by closing the SerialPort and opening it again, anything waiting in the 
+	 * receive buffer is thrown away
+	 * 
+	 * @param baudRate The new baud rate
+	 */
+	public void setBaudRate(int baudRate)
+	{
+		//WPILib can't change the baud rate of an open port, so we have to be the ones that opened it
+		if(portId == null)
+		{
+			throw new IllegalStateException("The baud rate can't be changed on a SerialPort that was passed in");
+		}
+		
+		//Nothing to do if it's already right
+		if(baudRate == this.baudRate)
+		{
+			return;
+		}
+		
+		port.free();
+		
+		port = new SerialPort(baudRate, portId);
+		this.baudRate = baudRate;
+	}
+	
+	/**
+	 * Returns the number of bytes waiting in the receive buffer
+	 * 
+	 * @return The number of bytes waiting to be read
+	 */
+	public int getBytesReceived()
+	{
+		return port.getBytesReceived();
+	}
+	
+	/**
+	 * Reads everything waiting in the receive buffer, up to the space left in a buffer
+	 * 
+	 * @param buffer The buffer to read into
+	 * @param offset Where in the buffer to start putting bytes
+	 * @return The number of bytes that were read
+	 */
+	public int readAvailable(byte[] buffer, int offset)
+	{
+		int count = Math.min(port.getBytesReceived(), buffer.length - offset);
+		
+		if(count <= 0)
+		{
+			return 0;
+		}
+		
+		byte[] data = port.read(count);
+		
+		System.arraycopy(data, 0, buffer, offset, data.length);
+		
+		return data.length;
+	}
+	
+	/**
+	 * Throws away anything waiting in the receive buffer
+	 */
+	public void flush()
+	{
+		port.reset();
 	}
 
 	@Override
@@ -71,15 +190,39 @@ public class SerialPortComm implements CommMiddleMan{
 		//Setup a temp array to read data into
 		byte[] data = port.read(2);
 		
-		//Create a temporary return value short
-		short retVal = 0;
-		
 		//Combine the two bytes read into one short
-		retVal |= data[1] << 8;
-		retVal |= data[0];
+		return decoder.toWord(data[0], data[1]);
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int available() {
+		return port.getBytesReceived();
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readWords(short[] words, int offset, int count) {
+		//Only read as many whole words as are waiting in the receive buffer
+		count = Math.min(count, port.getBytesReceived() / 2);
+		
+		if(count <= 0)
+		{
+			return 0;
+		}
 		
-		//Return the short
-		return retVal;
+		//Read them all at once and decode them in one go
+		byte[] data = port.read(count * 2);
+		
+		count = Math.min(count, data.length / 2);
+		
+		decoder.decode(data, 0, words, offset, count);
+		
+		return count;
 	}
 
 	@Override
@@ -96,8 +239,34 @@ public class SerialPortComm implements CommMiddleMan{
 	 * {@inheritDoc}
 	 */
 	public void write(ByteBuffer buffer) {
-		port.write(buffer.array(), buffer.array().length);
+		//Heap buffers can be written straight from their array
+		if(buffer.hasArray())
+		{
+			port.write(buffer.array(), buffer.array().length);
+			return;
+		}
 		
+		//Direct buffers (which I2C needs, so that's what the Pixy class builds) don't have one, so copy into 
+		//a scratch array that is kept around for the next write
+		if(writeScratch == null || writeScratch.length != buffer.capacity())
+		{
+			writeScratch = new byte[buffer.capacity()];
+		}
+		
+		for(int i = 0; i < writeScratch.length; i++)
+		{
+			writeScratch[i] = buffer.get(i);
+		}
+		
+		port.write(writeScratch, writeScratch.length);
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void free() {
+		port.free();
 	}
 	
 	
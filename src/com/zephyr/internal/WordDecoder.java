@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Turns the raw bytes read from a Pixy into 16 bit words. This is the one place bytes are put together into words, so
+ * every communication type gets it right the same way: I2C and UART send the low byte first (little endian), SPI sends the
+ * high byte first (big endian).
+ *
+ * Runs of words are decoded in one pass through a ByteBuffer view of the byte array in the right byte order, rather than
+ * putting each word together by hand. The view is kept around as long as the same array keeps being decoded from, so
+ * decoding out of a read buffer that gets reused doesn't create anything.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class WordDecoder {
+	
+	//The order the two bytes of each word come in
+	private ByteOrder order;
+	
+	//The array the views were made for, and the views themselves
+	private byte[] source;
+	private ByteBuffer byteView;
+	private ShortBuffer wordView;
+	
+	/**
+	 * Creates a new WordDecoder
+	 *
+	 * @param order The order the bytes of each word come in, ByteOrder.LITTLE_ENDIAN for I2C and UART, ByteOrder.BIG_ENDIAN for SPI
+	 */
+	public WordDecoder(ByteOrder order)
+	{
+		this.order = order;
+	}
+	
+	/**
+	 * Returns the order the bytes of each word come in
+	 *
+	 * @return The byte order
+	 */
+	public ByteOrder getOrder()
+	{
+		return order;
+	}
+	
+	/**
+	 * Decodes a run of words from a byte array
+	 *
+	 * @param bytes The bytes to decode
+	 * @param byteOffset Where in the byte array the first word starts
+	 * @param words The array to put the words in
+	 * @param wordOffset Where in the word array to put the first word
+	 * @param count The number of words to decode, there have to be at least twice this many bytes after byteOffset
+	 */
+	public void decode(byte[] bytes, int byteOffset, short[] words, int wordOffset, int count)
+	{
+		//Only make new views when the array changes
+		if(bytes != source)
+		{
+			source = bytes;
+			byteView = ByteBuffer.wrap(bytes).order(order);
+			wordView = byteView.asShortBuffer();
+		}
+		
+		if((byteOffset & 1) == 0)
+		{
+			//Lined up with the word view, so the whole run can be copied out at once
+			wordView.position(byteOffset >> 1);
+			wordView.get(words, wordOffset, count);
+		}
+		else
+		{
+			//Off by a byte, which happens when a stray byte was read to get back in sync
+			for(int i = 0; i < count; i++)
+			{
+				words[wordOffset + i] = byteView.getShort(byteOffset + i * 2);
+			}
+		}
+	}
+	
+	/**
+	 * Puts a single word together from the two bytes it was sent as
+	 *
+	 * @param first The byte that was sent first
+	 * @param second The byte that was sent second
+	 * @return The word
+	 */
+	public short toWord(byte first, byte second)
+	{
+		return toWord(first, second, order);
+	}
+	
+	/**
+	 * Puts a single word together from the two bytes it was sent as. Both bytes are masked before they're combined,
+	 * so a low byte with its high bit set can't spill into the high byte.
+	 *
+	 * @param first The byte that was sent first
+	 * @param second The byte that was sent second
+	 * @param order The order the bytes came in
+	 * @return The word
+	 */
+	public static short toWord(byte first, byte second, ByteOrder order)
+	{
+		if(order == ByteOrder.LITTLE_ENDIAN)
+		{
+			return (short) ((first & 0xFF) | (second & 0xFF) << 8);
+		}
+		
+		return (short) ((first & 0xFF) << 8 | (second & 0xFF));
+	}
+	
+	/**
+	 * Checks a Pixy block's checksum, which is the sum of the rest of the block's words as an unsigned 16 bit number
+	 *
+	 * @param checksum The checksum that was sent with the block
+	 * @param words The rest of the block's words
+	 * @param offset Where in the array the block's words start
+	 * @param count The number of words to add up
+	 * @return True if the checksum matches
+	 */
+	public static boolean checksumMatches(short checksum, short[] words, int offset, int count)
+	{
+		int sum = 0;
+		
+		for(int i = 0; i < count; i++)
+		{
+			sum += words[offset + i] & 0xFFFF;
+		}
+		
+		return (sum & 0xFFFF) == (checksum & 0xFFFF);
+	}
+}
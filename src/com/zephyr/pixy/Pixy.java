@@ -15,15 +15,23 @@ package com.zephyr.pixy;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
 
 import com.zephyr.internal.CommMiddleMan;
+import com.zephyr.internal.I2CBusScheduler;
 import com.zephyr.internal.I2CComm;
+import com.zephyr.internal.ReconnectingComm;
 import com.zephyr.internal.SPIComm;
+import com.zephyr.internal.SerialBaudRateDetector;
 import com.zephyr.internal.SerialPortComm;
 
 import edu.wpi.first.wpilibj.I2C;
+import edu.wpi.first.wpilibj.Notifier;
 import edu.wpi.first.wpilibj.SPI;
 import edu.wpi.first.wpilibj.SerialPort;
+import edu.wpi.first.wpilibj.Timer;
 
 /**
  * This is the main class that manages it all. It allows you to create a reference to a Pixy using 3 of 
@@ -49,6 +57,16 @@ public class Pixy {
 	 */
 	public static final int DEFAULT_MAX_OBJECTS = 1000;
 	
+	/**
+	 * The width of the image the Pixy reports positions in, X positions range from 0 to FRAME_WIDTH - 1
+	 */
+	public static final int FRAME_WIDTH = 320;
+	
+	/**
+	 * The height of the image the Pixy reports positions in, Y positions range from 0 to FRAME_HEIGHT - 1
+	 */
+	public static final int FRAME_HEIGHT = 200;
+	
 	/**
 	 * The value of a normal detection sync word
 	 */
@@ -64,6 +82,17 @@ public class Pixy {
 	 * and this can be used to get us back in sync when looking for the values we need.
 	 */
 	public static final short OUT_OF_SYNC_WORD = -10838;
+	
+	/**
+	 * The most words that will be read looking for the start of a frame before giving up until the next update. 
+	 * This keeps a stream of garbage from tying the parser up forever.
+	 */
+	public static final int MAX_SYNC_SEARCH_WORDS = 2048;
+	
+	//The number of words at the start of a frame before its first block, and the most words a block can take up (a color code
+	//block's sync word, checksum, signature, position, size and angle)
+	private static final int FRAME_START_WORDS = 1;
+	private static final int MAX_BLOCK_WORDS = 8;
 
 	//The middle man between the communication protocol we're using and the rest of the code
 	private CommMiddleMan comms;
@@ -74,6 +103,60 @@ public class Pixy {
 	//The maximum number of objects that can be detected by the Pixy
 	private int maxAllowedObjects;
 	
+	//The most recent frame, stored as primitives so it can be copied around without creating garbage
+	private PixyFrame frame;
+	
+	//The history of recent frames, null unless enableFrameHistory has been called
+	private PixyFrameHistory history;
+	
+	//Merges fragmented blocks of the same signature, null unless enableBlockMerging has been called
+	private PixyBlockMerger merger;
+	
+	//Votes over recent frames to keep flickering blocks from being reported, null unless enableFlickerFilter has been called
+	private PixyFlickerFilter flickerFilter;
+	
+	//Predicts where each signature's target is between frames, null unless enableTargetEstimator has been called
+	private PixyTargetEstimator targetEstimator;
+	
+	//Indexes the blocks of each frame by position, null unless enableGridIndex has been called
+	private PixyGridIndex gridIndex;
+	
+	//Hands new frames and signature acquired/lost events out to listeners
+	private PixyEventDispatcher dispatcher;
+	
+	//Reads frames in the background, null unless startAcquisition has been called
+	private Notifier acquisitionNotifier;
+	
+	//Whether or not frames are being read in the background
+	private volatile boolean acquiring;
+	
+	//The words read from the Pixy that haven't been parsed yet. Whatever is left over after a frame, like the start of the
+	//next one, stays here for the next update. The unparsed words are frameWords[wordPosition] up to frameWords[wordLimit].
+	private short[] frameWords;
+	private int wordPosition;
+	private int wordLimit;
+	
+	//Moves the servos to follow a target after every frame, null unless setPanTiltTracker has been called
+	private PixyPanTiltTracker panTiltTracker;
+	
+	//The buffer servo commands are built in, kept around so following a target doesn't create one every frame
+	private ByteBuffer servoBuffer;
+	
+	//Where frame timestamps come from, the FPGA clock unless something (like the parser soak test) replaces it
+	private DoubleSupplier clock;
+	
+	//The effective UART throughput measured by autodetectUARTBaudRate, in bytes per second
+	private double uartThroughput;
+	
+	//The baud rate UART is opened at, kept up to date so reconnecting uses the same one
+	private int uartBaudRate;
+	
+	//Creates the communication hardware, kept so the connection watchdog can re-create it
+	private Supplier<CommMiddleMan> commsFactory;
+	
+	//Watches the connection and re-creates the communication hardware if the Pixy stops talking, null unless enableConnectionWatchdog has been called
+	private ReconnectingComm connection;
+	
 	/**
 	 * Create a new Pixy object with a specific I2C port and a maximum number of allowable objects.
 	 * The default I2C address for the Pixy is used with this constructor
@@ -95,7 +178,29 @@ public class Pixy {
 	 */
 	public Pixy(I2C.Port port, int address, int maxAllowedObjects)
 	{
-		comms = new I2CComm(new I2C(port, address));
+		openComms(() -> new I2CComm(new I2C(port, address)));
+		
+		genericPixyInit(maxAllowedObjects);
+	}
+	
+	/**
+	 * Create a new Pixy object on an I2C port that's shared with other devices. The Pixy registers with the port's 
+	 * I2CBusScheduler (I2CBusScheduler.forPort) and is read a slice at a time, so other devices registered with the same 
+	 * scheduler can get on the bus in between slices. The bus time the Pixy uses is tracked by the scheduler under the name 
+	 * "Pixy 0x" followed by the address.
+	 * 
+	 * @param port The I2C port to communicate on
+	 * @param address The I2C address to talk to
+	 * @param maxAllowedObjects The maximum number of objects
+	 * @param busPriority The Pixy's priority on the bus, higher numbers go first
+	 * @param busBudget The most bus time the Pixy gets each scheduler period before other devices go ahead of it, in seconds
+	 */
+	public Pixy(I2C.Port port, int address, int maxAllowedObjects, int busPriority, double busBudget)
+	{
+		I2CBusScheduler scheduler = I2CBusScheduler.forPort(port);
+		int device = scheduler.register("Pixy 0x" + Integer.toHexString(address), busPriority, busBudget);
+		
+		openComms(() -> new I2CComm(new I2C(port, address), scheduler, device));
 		
 		genericPixyInit(maxAllowedObjects);
 	}
@@ -121,7 +226,9 @@ public class Pixy {
 	 */
 	public Pixy(SerialPort.Port port, int baudRate, int maxAllowedObjects)
 	{
-		comms = new SerialPortComm(new SerialPort(baudRate, port));
+		uartBaudRate = baudRate;
+		
+		openComms(() -> new SerialPortComm(port, uartBaudRate));
 		
 		genericPixyInit(maxAllowedObjects);
 	}
@@ -134,7 +241,37 @@ public class Pixy {
 	 */
 	public Pixy(SPI.Port port, int maxAllowedObjects)
 	{
-		comms = new SPIComm(new SPI(port));
+		openComms(() -> new SPIComm(new SPI(port)));
+		
+		genericPixyInit(maxAllowedObjects);
+	}
+	
+	/**
+	 * Create a new Pixy object that talks through a communication object that has already been set up. 
+	 * This is used by PixyDiscovery, which has to open the device to find out if there's a Pixy on it.
+	 * 
+	 * @param comms The communication object to talk through
+	 * @param maxAllowedObjects The maximum number of objects
+	 */
+	Pixy(CommMiddleMan comms, int maxAllowedObjects)
+	{
+		this.comms = comms;
+		
+		genericPixyInit(maxAllowedObjects);
+	}
+	
+	/**
+	 * Create a new Pixy object that talks through a communication object that has already been set up, along with a way to 
+	 * re-create it if the connection watchdog is turned on. This is used by PixyDiscovery.
+	 * 
+	 * @param comms The communication object to start with
+	 * @param reconnect Creates a new communication object to replace the old one when reconnecting
+	 * @param maxAllowedObjects The maximum number of objects
+	 */
+	Pixy(CommMiddleMan comms, Supplier<CommMiddleMan> reconnect, int maxAllowedObjects)
+	{
+		this.comms = comms;
+		commsFactory = reconnect;
 		
 		genericPixyInit(maxAllowedObjects);
 	}
@@ -154,27 +291,445 @@ public class Pixy {
 			return null;
 		}
 		
-		//Update the Pixy object detections
-		updatePixyDetections();
+		PixyDetection detection;
+		
+		synchronized(this)
+		{
+			//Update the Pixy object detections, unless they're already being updated in the background
+			if(!acquiring)
+			{
+				updatePixyDetections();
+			}
+			
+			detection = detections[detectionNum];
+		}
+		
+		//Let the listeners know about the frame now that the lock has been let go of
+		dispatcher.dispatchPending();
 		
 		//Return the detection the user actually wanted
-		return detections[detectionNum];
+		return detection;
 	}
 	
 	/**
-	 * Updates the entire set of detection objects and returns the entire array of objects
+	 * Updates the entire set of detection objects and returns the entire array of objects. If frames are being read in the background 
+	 * with startAcquisition, this just returns the most recent detections without reading anything.
 	 * 
 	 * @return The entire array of PixyDetection objects 
 	 */
 	public PixyDetection[] getAllDetectedObjects()
 	{
-		//Update the Pixy object detections
-		updatePixyDetections();
+		synchronized(this)
+		{
+			//Update the Pixy object detections, unless they're already being updated in the background
+			if(!acquiring)
+			{
+				updatePixyDetections();
+			}
+		}
+		
+		//Let the listeners know about the frame now that the lock has been let go of
+		dispatcher.dispatchPending();
 		
 		//Return the array of detections
 		return detections;
 	}
 	
+	/**
+	 * Returns the most recent frame read from the Pixy without reading anything new from the communication hardware.
+	 * The frame is reused every time a new frame is read, so copy it if you need to keep it around. If frames are being read 
+	 * in the background with startAcquisition, synchronize on this Pixy while reading the frame (or the history and merger) so it 
+	 * doesn't change out from under you.
+	 * 
+	 * @return The most recent frame
+	 */
+	public PixyFrame getLatestFrame()
+	{
+		return frame;
+	}
+	
+	/**
+	 * Starts keeping a history of the most recent frames, so that detections can be looked up "as of" a specific time.
+	 * Calling this again replaces the existing history with a new, empty one.
+	 * 
+	 * @param capacity The number of frames to keep, at least 1
+	 */
+	public void enableFrameHistory(int capacity)
+	{
+		history = new PixyFrameHistory(capacity, maxAllowedObjects);
+	}
+	
+	/**
+	 * Returns the history of recent frames
+	 * 
+	 * @return The frame history, or null if enableFrameHistory hasn't been called
+	 */
+	public PixyFrameHistory getFrameHistory()
+	{
+		return history;
+	}
+	
+	/**
+	 * Figures out what baud rate the Pixy is sending at over UART and switches to it, trying the fastest rates first. 
+	 * One of the Pixy's signatures has to be in view while this runs, otherwise there's nothing to recognize. This takes 
+	 * a little under a second in the worst case, so do it while the robot is starting up.
+	 * 
+	 * @return The baud rate that was picked, or -1 if this Pixy isn't on UART or none of the baud rates worked
+	 */
+	public synchronized int autodetectUARTBaudRate()
+	{
+		//If the connection watchdog is on, the SerialPortComm is inside it
+		CommMiddleMan transport = connection != null ? connection.getComm() : comms;
+		
+		//Only works for UART
+		if(!(transport instanceof SerialPortComm))
+		{
+			return -1;
+		}
+		
+		SerialBaudRateDetector detector = new SerialBaudRateDetector((SerialPortComm) transport);
+		
+		int baudRate = detector.detect();
+		
+		//Anything read before the baud rate changed is garbage now
+		discardWords();
+		
+		if(baudRate > 0)
+		{
+			uartThroughput = detector.getBytesPerSecond();
+			uartBaudRate = baudRate;
+			
+			//The detector saw frames, so the Pixy is definitely there
+			if(connection != null)
+			{
+				connection.markHealthy();
+			}
+			
+			System.out.println("PIXY UART AT " + baudRate + " BAUD, " + (int) uartThroughput + " BYTES/S");
+		}
+		else
+		{
+			uartThroughput = 0;
+			
+			System.out.println("PIXY UART BAUD RATE NOT FOUND!");
+		}
+		
+		return baudRate;
+	}
+	
+	/**
+	 * Returns the effective throughput measured the last time autodetectUARTBaudRate found a baud rate
+	 * 
+	 * @return The throughput in bytes per second, or 0 if it hasn't been measured
+	 */
+	public double getUARTThroughput()
+	{
+		return uartThroughput;
+	}
+	
+	/**
+	 * Starts reading frames from the Pixy in the background at a fixed rate. While this is running, getDetectedObject and 
+	 * getAllDetectedObjects don't read from the communication hardware, they just return the most recent detections, and 
+	 * listeners are told about every new frame as soon as it's read.
+	 * 
+	 * @param period How often to read a frame, in seconds. The Pixy sends a new frame every 20ms.
+	 */
+	public synchronized void startAcquisition(double period)
+	{
+		if(acquisitionNotifier == null)
+		{
+			acquisitionNotifier = new Notifier(this::acquireFrame);
+		}
+		
+		acquiring = true;
+		acquisitionNotifier.startPeriodic(period);
+	}
+	
+	/**
+	 * Stops reading frames in the background, after this the detection getters go back to reading from the Pixy themselves
+	 */
+	public synchronized void stopAcquisition()
+	{
+		if(acquisitionNotifier != null)
+		{
+			acquisitionNotifier.stop();
+		}
+		
+		acquiring = false;
+	}
+	
+	/**
+	 * Returns whether or not frames are being read in the background
+	 * 
+	 * @return True if startAcquisition has been called and stopAcquisition hasn't
+	 */
+	public boolean isAcquiring()
+	{
+		return acquiring;
+	}
+	
+	/**
+	 * Adds a listener that gets told about new frames and signatures being acquired or lost. Listeners are only called when a frame is 
+	 * actually read, so either use startAcquisition or keep calling one of the detection getters. A new listener is first told about 
+	 * every signature that is already acquired. Listeners are never called while this Pixy is locked, so they can call back into it.
+	 * 
+	 * @param listener The listener to add
+	 */
+	public void addListener(PixyListener listener)
+	{
+		dispatcher.addListener(listener);
+	}
+	
+	/**
+	 * Removes a listener
+	 * 
+	 * @param listener The listener to remove
+	 * @return True if the listener was found and removed
+	 */
+	public boolean removeListener(PixyListener listener)
+	{
+		return dispatcher.removeListener(listener);
+	}
+	
+	/**
+	 * Sets what listeners are called on. By default listeners are called directly on the thread that read the frame, 
+	 * give this an executor if your listeners do anything slow. Only one frame and one event per signature is ever waiting 
+	 * for the executor, anything older is replaced, so a slow executor just skips frames rather than falling behind.
+	 * 
+	 * @param executor The executor to call listeners on
+	 */
+	public void setListenerExecutor(Executor executor)
+	{
+		dispatcher.setExecutor(executor);
+	}
+	
+	/**
+	 * Sets how many frames in a row a signature has to show up before listeners are told it was seen, and how many frames in a row 
+	 * it has to be missing before listeners are told it was lost. This keeps a block that flickers in and out from firing events every frame.
+	 * 
+	 * @param acquireFrames The number of frames a signature has to be seen in a row before it's acquired
+	 * @param loseFrames The number of frames a signature has to be missing in a row before it's lost
+	 */
+	public void setSignatureHysteresis(int acquireFrames, int loseFrames)
+	{
+		dispatcher.setHysteresis(acquireFrames, loseFrames);
+	}
+	
+	/**
+	 * Turns on merging of blocks of the same signature that are overlapping or close to each other. The Pixy often splits one
+	 * target into several blocks, after every frame the merged blocks are available from getBlockMerger().getMergedFrame()
+	 * 
+	 * @param gap How far apart (in pixels) two blocks can be and still be merged
+	 */
+	public void enableBlockMerging(int gap)
+	{
+		merger = new PixyBlockMerger(maxAllowedObjects, gap);
+	}
+	
+	/**
+	 * Returns the block merger that runs after every frame
+	 * 
+	 * @return The block merger, or null if enableBlockMerging hasn't been called
+	 */
+	public PixyBlockMerger getBlockMerger()
+	{
+		return merger;
+	}
+	
+	/**
+	 * Turns on filtering of blocks that flicker in and out from frame to frame. A block is only reported once it's been seen in 
+	 * requiredFrames of the last windowFrames frames, and once it's reported it keeps being reported where it was last seen for graceFrames 
+	 * frames after it disappears. Blocks are followed from frame to frame by matching them to the nearest block of the same signature. 
+	 * After every frame the filtered blocks are available from getFlickerFilter().getFilteredFrame()
+	 * 
+	 * @param requiredFrames How many of the recent frames a block has to be seen in
+	 * @param windowFrames The number of recent frames to vote over
+	 * @param graceFrames How many frames a block keeps being reported after it disappears
+	 */
+	public void enableFlickerFilter(int requiredFrames, int windowFrames, int graceFrames)
+	{
+		flickerFilter = new PixyFlickerFilter(requiredFrames, windowFrames, graceFrames, maxAllowedObjects);
+	}
+	
+	/**
+	 * Returns the flicker filter that runs after every frame
+	 * 
+	 * @return The flicker filter, or null if enableFlickerFilter hasn't been called
+	 */
+	public PixyFlickerFilter getFlickerFilter()
+	{
+		return flickerFilter;
+	}
+	
+	/**
+	 * Turns on estimating where each signature's target is between frames. After this, getTargetEstimator().predict() can be 
+	 * called from a loop running faster than the Pixy to get the target's position as of right now rather than as of the last frame.
+	 * 
+	 * @return The estimator, so the gains can be set
+	 */
+	public PixyTargetEstimator enableTargetEstimator()
+	{
+		targetEstimator = new PixyTargetEstimator();
+		
+		return targetEstimator;
+	}
+	
+	/**
+	 * Returns the estimator that is updated after every frame
+	 * 
+	 * @return The target estimator, or null if enableTargetEstimator hasn't been called
+	 */
+	public PixyTargetEstimator getTargetEstimator()
+	{
+		return targetEstimator;
+	}
+	
+	/**
+	 * Turns on indexing the blocks of every frame by where they are in the image. After this, getGridIndex() can find the 
+	 * block nearest a point, or the blocks near a point or inside a rectangle, without looking at every block in the frame.
+	 * 
+	 * @param cellSize The width and height of each grid cell, in pixels, PixyGridIndex.DEFAULT_CELL_SIZE is a good start
+	 * @return The grid index
+	 */
+	public PixyGridIndex enableGridIndex(int cellSize)
+	{
+		gridIndex = new PixyGridIndex(cellSize, maxAllowedObjects);
+		
+		return gridIndex;
+	}
+	
+	/**
+	 * Returns the grid index that is rebuilt after every frame
+	 * 
+	 * @return The grid index, or null if enableGridIndex hasn't been called
+	 */
+	public PixyGridIndex getGridIndex()
+	{
+		return gridIndex;
+	}
+	
+	/**
+	 * Turns on the connection watchdog. After this, if nothing at all comes back from the Pixy (no data and no frame sync, even an 
+	 * empty frame counts) for longer than the connection deadline, the Pixy is declared down and the communication hardware is 
+	 * re-created until it answers again. While it's down, every frame is empty and marked stale.
+	 * 
+	 * Over SPI something is always read back whether or not a Pixy is there, so the watchdog can't tell when an SPI Pixy is unplugged. 
+	 * Calling this more than once does nothing, and it does nothing for a Pixy that was made from a communication object with no way 
+	 * to re-create it.
+	 */
+	public synchronized void enableConnectionWatchdog()
+	{
+		if(connection != null || commsFactory == null)
+		{
+			return;
+		}
+		
+		//Go through the field so setClock applies to the connection too
+		connection = new ReconnectingComm(comms, commsFactory, () -> clock.getAsDouble());
+		
+		comms = connection;
+	}
+	
+	/**
+	 * Returns whether or not the Pixy is answering. See enableConnectionWatchdog.
+	 * 
+	 * @return True if the Pixy has answered within the connection deadline, always true if the watchdog isn't turned on
+	 */
+	public boolean isConnected()
+	{
+		return connection == null || connection.isHealthy();
+	}
+	
+	/**
+	 * Returns how long it's been since the Pixy last answered
+	 * 
+	 * @return The time since the Pixy last answered in seconds, or 0 if the watchdog isn't turned on
+	 */
+	public double getTimeSinceLastFrame()
+	{
+		return connection != null ? connection.getTimeSinceLastFrame() : 0;
+	}
+	
+	/**
+	 * Sets how long the Pixy can go without answering before the watchdog declares it down and recovers the connection
+	 * 
+	 * @param deadline The deadline in seconds
+	 */
+	public void setConnectionDeadline(double deadline)
+	{
+		if(connection != null)
+		{
+			connection.setDeadline(deadline);
+		}
+	}
+	
+	/**
+	 * Sets how long to wait between attempts to re-create the communication hardware while the Pixy is down. The first attempt is 
+	 * made right away, then the wait starts at the minimum and doubles every attempt up to the maximum.
+	 * 
+	 * @param minBackoff The wait between the first attempts, in seconds
+	 * @param maxBackoff The longest wait between attempts, in seconds
+	 */
+	public void setReconnectBackoff(double minBackoff, double maxBackoff)
+	{
+		if(connection != null)
+		{
+			connection.setBackoff(minBackoff, maxBackoff);
+		}
+	}
+	
+	/**
+	 * Returns how many times the Pixy has come back after being declared down
+	 * 
+	 * @return The number of times it has reconnected
+	 */
+	public int getReconnectCount()
+	{
+		return connection != null ? connection.getReconnectCount() : 0;
+	}
+	
+	/**
+	 * Returns how long the last recovery took, from when the Pixy was declared down to when it first answered after that
+	 * 
+	 * @return The last recovery time in seconds, or 0 if it has never had to recover
+	 */
+	public double getLastRecoveryTime()
+	{
+		return connection != null ? connection.getLastRecoveryTime() : 0;
+	}
+	
+	/**
+	 * Returns the longest any recovery has taken
+	 * 
+	 * @return The longest recovery time in seconds, or 0 if it has never had to recover
+	 */
+	public double getLongestRecoveryTime()
+	{
+		return connection != null ? connection.getLongestRecoveryTime() : 0;
+	}
+	
+	/**
+	 * Returns the longest it can take to notice the Pixy is back once it starts answering again, 
+	 * which is the connection deadline plus the longest wait between reconnect attempts
+	 * 
+	 * @return The recovery time bound in seconds, or 0 if the watchdog isn't turned on
+	 */
+	public double getRecoveryTimeBound()
+	{
+		return connection != null ? connection.getRecoveryTimeBound() : 0;
+	}
+	
+	/**
+	 * Stops reading in the background and frees the communication hardware, so it can be used for something else. 
+	 * This Pixy can't be used after this.
+	 */
+	public synchronized void free()
+	{
+		stopAcquisition();
+		
+		comms.free();
+	}
+	
 	/**
 	 * Sends information to the Pixy to adjust the pan and tilt of the Pixy using the servo mount attachment
 	 * 
@@ -191,20 +746,28 @@ public class Pixy {
 			return;
 		}
 		
-		//Create a ByteBuffer and order it little endian
-		ByteBuffer buffer = ByteBuffer.allocateDirect(6);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-		
-		//Put the sync word into the buffer that indicates that this data is for the servos
-		buffer.put((byte) 0x00);
-		buffer.put((byte) 0xFF);
-		
-		//Put the pan and tilt shorts into the buffer
-		buffer.putShort(pan);
-		buffer.putShort(tilt);
-		
-		//Write to the communication hardware
-		comms.write(buffer);
+		writePanTilt(pan, tilt);
+	}
+	
+	/**
+	 * Has the Pixy follow a target with its pan/tilt servos. The tracker runs right after every frame is parsed and moves the 
+	 * servos straight away, so there's no robot loop in between seeing the target move and following it.
+	 * 
+	 * @param tracker The tracker to run, or null to stop following
+	 */
+	public synchronized void setPanTiltTracker(PixyPanTiltTracker tracker)
+	{
+		panTiltTracker = tracker;
+	}
+	
+	/**
+	 * Returns the tracker that's following a target with the pan/tilt servos
+	 * 
+	 * @return The tracker, or null if there isn't one
+	 */
+	public PixyPanTiltTracker getPanTiltTracker()
+	{
+		return panTiltTracker;
 	}
 	
 	/**
@@ -288,117 +851,367 @@ public class Pixy {
 	 * to be doing any extra work that it doesn't have to be doing.
 	 * 
 	 * TODO Test to see if the Pixy chokes out empty objects up to the number of objects you specify that it can detect
+	 * 
+	 * @return True if a frame was read
 	 */
-	private void updatePixyDetections()
+	private boolean readFrame()
 	{
-		//Create two shorts to work with, the first thing we need to look for is the frame sync, which is either two 0xAA55's or one 0xAA55
-		//and one 0xAA56
-		Short currentWord = 0;
-		Short lastWord = -1;
+		//The Pixy sends a frame as a 0xAA55, then every block as a sync word (0xAA55 for a normal block and 0xAA56 for a color code),
+		//a checksum and then the block itself. Everything that's already waiting is read in one go, and then the whole frame is
+		//decoded straight out of frameWords in this one loop, checking each block's checksum as it's added up.
 		
-		//The current block type of the object that we are dealing with
-		Short blockType = null;
+		//The number of words we've looked through so far, this keeps a stream of garbage from keeping us here forever
+		int wordsSearched = 0;
 		
-		//Whether or not we've already detected a block type, this boolean is used to indicate that the frame beginning search has been performed
-		//and we already know what the first detected object is for a object type (either normal or a color code)
-		boolean preBlockDetect = true;
-		
-		//While true makes me nervous...
-		//TODO Apply a timer to this that returns if it takes to long to find the start frame in the buffer, maybe even throw a proper Exception
+		//The first thing we need to look for is the frame sync, which is a 0xAA55 followed by the sync word of the first block
 		while(true)
 		{
-			//Read a word
-			currentWord = comms.readShort();
+			//If we've looked through more words than the Pixy could possibly send between frames, give up for now
+			if(wordsSearched++ >= MAX_SYNC_SEARCH_WORDS)
+			{
+				System.out.println("PIXY FRAME SYNC NOT FOUND!");
+				return false;
+			}
 			
-			//If both this word and the last were 0, something's wrong, and wasting time reading an empty buffer isn't going to do any good
-			//so return
-			if(currentWord == 0 && lastWord == 0)
+			//If there aren't two words waiting there's nothing to do until there are
+			if(!fillWords(2))
 			{
-				return;
+				return false;
 			}
-			else if(currentWord == NORMAL_SYNC_WORD && lastWord == NORMAL_SYNC_WORD) //Otherwise if two sync words (0xAA55)
+			
+			short lastWord = frameWords[wordPosition];
+			short currentWord = frameWords[wordPosition + 1];
+			
+			//If both words are 0 the Pixy has nothing to send, and wasting time reading an empty buffer isn't going to do any good
+			//so return. If there's more already read after them though, it costs nothing to keep looking through that.
+			if(lastWord == 0 && currentWord == 0)
 			{
-				//Then set the appropriate block type and break
-				blockType = NORMAL_SYNC_WORD;
-				break;
+				wordPosition += 2;
+				
+				if(wordPosition == wordLimit)
+				{
+					return false;
+				}
+				
+				continue;
 			}
-			else if(currentWord == CC_SYNC_WORD && lastWord == NORMAL_SYNC_WORD) //Otherwise if two different sync words (0xAA55 (start frame) and 0xAA56 (color code block)
+			else if(lastWord == NORMAL_SYNC_WORD && (currentWord == NORMAL_SYNC_WORD || currentWord == CC_SYNC_WORD)) //Two sync words start a frame
 			{
-				//Then set the appropriate block type and break
-				blockType = CC_SYNC_WORD;
+				//Step past the 0xAA55 so we're sitting on the first block's sync word
+				wordPosition++;
 				break;
 			}
-			else if(currentWord == OUT_OF_SYNC_WORD) //Otherwise if the current word is out of sync (0x55AA)
+			else if(lastWord == OUT_OF_SYNC_WORD) //Otherwise if the word is out of sync (0x55AA)
 			{
 				//Notify through the RIOlog that we're out of sync and read a byte to try to get us back in sync
-				//Otherwise we'll never find the right sync words, we'll always be one byte off
+				//Otherwise we'll never find the right sync words, we'll always be one byte off. Every word we're holding
+				//is off by a byte too, so throw them away and start over from the hardware.
 				System.out.println("PIXY DATA OUT OF SYNC!");
+				
+				discardWords();
+				
 				comms.readByte();
+				continue;
 			}
 			
-			//Set the current word to the last word and repeat
-			lastWord = currentWord;
+			wordPosition++;
+		}
+		
+		//We found the start of a frame, so note when it was captured and throw away the last frame's detections
+		//so that stale ones from the previous frame don't linger around
+		frame.clear(clock.getAsDouble());
+		
+		for(int i = 0; i < detections.length; i++)
+		{
+			detections[i] = null;
 		}
 		
 		//For the maximum number of allowed object detections
 		for(int i = 0; i < maxAllowedObjects; i++)
 		{
-			//If we just did the while loop above, we don't need to try to look up a block type, we already know it.
-			if(preBlockDetect)
+			//Every block starts with its sync word and checksum, if the data ran out the frame is over
+			if(!fillWords(2))
 			{
-				preBlockDetect = false;
+				break;
 			}
-			else //Otherwise if this is an object other than the first one
+			
+			short blockType = frameWords[wordPosition];
+			short checksum = frameWords[wordPosition + 1];
+			
+			//If it isn't one of our two sync words, notify that the data received doesn't make any sense and stop reading this frame
+			if(blockType != NORMAL_SYNC_WORD && blockType != CC_SYNC_WORD)
 			{
-				//Grab a short from the communication hardware
-				Short tempWord = comms.readShort();
-				
-				//And switch
-				switch(tempWord)
+				System.out.println("SYNC WORD NOT FOUND WHEN PROCESSING!");
+				wordPosition++;
+				break;
+			}
+			
+			//A sync word where the checksum should be means that what we thought was a block is actually the 0xAA55 that starts
+			//the next frame. Leave it where it is so the next update finds it right away.
+			if(checksum == NORMAL_SYNC_WORD || checksum == CC_SYNC_WORD)
+			{
+				if(blockType != NORMAL_SYNC_WORD)
 				{
-					//If it's either of our two sync words, just apply that sync word to our block type
-					case NORMAL_SYNC_WORD:
-					case CC_SYNC_WORD:
-						blockType = tempWord;
-						break;
-					default: //Otherwise notify that the data received doesn't make any sense and return
-						System.out.println("SYNC WORD NOT FOUND WHEN PROCESSING!");
-						return;
+					wordPosition += 2;
 				}
+				
+				break;
+			}
+			
+			//A checksum of 0 means the Pixy has nothing else to send
+			if(checksum == 0)
+			{
+				wordPosition += 2;
+				break;
 			}
 			
-			//Grab all the other values that the Pixy sends
-			Short checksum = comms.readShort();
+			//Remember that angle is only for color codes, so it's only there if this is a color code block. If the data runs out 
+			//partway through, the block is incomplete and the frame is over, the rest of it stays put for the next update to sort out.
+			int blockLength = blockType == CC_SYNC_WORD ? 6 : 5;
 			
-			Short signatureNumber = comms.readShort();
+			if(!fillWords(2 + blockLength))
+			{
+				break;
+			}
 			
-			Short xCenter = comms.readShort();
+			int block = wordPosition + 2;
 			
-			Short yCenter = comms.readShort();
+			wordPosition = block + blockLength;
 			
-			Short objectWidth = comms.readShort();
+			//Add up the block as an unsigned 16 bit sum to check it against the checksum
+			int sum = 0;
+			
+			for(int w = block; w < wordPosition; w++)
+			{
+				sum += frameWords[w] & 0xFFFF;
+			}
 			
-			Short objectHeight = comms.readShort();
+			short signatureNumber = frameWords[block];
 			
-			//Remember that angle is only for color codes. If we're using a color code block, then read another short, otherwise the value is just 0
-			Short angle = blockType == CC_SYNC_WORD ? comms.readShort() : 0;
+			short xCenter = frameWords[block + 1];
 			
-			//My kingdom for uint16_t in Java
-			Short sum = (short) ((short) signatureNumber + (short) xCenter + 
-					(short) yCenter + (short) objectWidth + (short) objectHeight + 
-					(short) angle);
+			short yCenter = frameWords[block + 2];
 			
-			//Validate the checksum, if it's ok, then setup that value with a new PixyDetection object
-			if(checksum == sum)
+			short objectWidth = frameWords[block + 3];
+			
+			short objectHeight = frameWords[block + 4];
+			
+			short angle = blockType == CC_SYNC_WORD ? frameWords[block + 5] : 0;
+			
+			//If the checksum is ok, then setup that value with a new PixyDetection object
+			if((sum & 0xFFFF) == (checksum & 0xFFFF))
 			{
 				detections[i] = new PixyDetection(blockType, 
 					signatureNumber, xCenter, yCenter, objectWidth, objectHeight, angle);
+				
+				frame.addBlock(blockType, signatureNumber, xCenter, yCenter, objectWidth, objectHeight, angle);
 			}
 			else //Otherwise display a warning in the RIOlog
 			{
 				System.out.println("CHECKSUM FAULT SIG#" + signatureNumber);
 			}
 		}
+		
+		return true;
+	}
+	
+	/**
+	 * Makes sure there are at least a number of unparsed words in frameWords, reading more from the communication hardware if there
+	 * aren't. If the hardware can tell how much is waiting, everything that's waiting is read at once (as much as fits), which is
+	 * usually the rest of the frame. If it can't, like I2C and SPI, only the words that are missing are read, since asking the Pixy
+	 * for more than it has just wastes bus time.
+	 * 
+	 * @param count The number of words needed
+	 * @return True if the words are there, false if the data ran out first
+	 */
+	private boolean fillWords(int count)
+	{
+		int buffered = wordLimit - wordPosition;
+		
+		if(buffered >= count)
+		{
+			return true;
+		}
+		
+		//Move what's left to the front to make room after it
+		System.arraycopy(frameWords, wordPosition, frameWords, 0, buffered);
+		
+		wordPosition = 0;
+		wordLimit = buffered;
+		
+		int available = comms.available();
+		int toRead = available < 0 ? count - buffered : Math.min(frameWords.length - buffered, available / 2);
+		
+		if(toRead > 0)
+		{
+			wordLimit += comms.readWords(frameWords, wordLimit, toRead);
+		}
+		
+		return wordLimit >= count;
+	}
+	
+	/**
+	 * Throws away every word that has been read but not parsed yet, used when whatever is left can't be trusted anymore
+	 */
+	private void discardWords()
+	{
+		wordPosition = 0;
+		wordLimit = 0;
+	}
+	
+	/**
+	 * Reads the next frame from the Pixy and hands it off to everything that wants to know about it. If the connection watchdog 
+	 * is on, this is also where the Pixy is declared down and reconnected.
+	 */
+	private synchronized void updatePixyDetections()
+	{
+		//Declare the Pixy down or try to reconnect if it's time
+		if(connection != null)
+		{
+			connection.check();
+		}
+		
+		boolean frameRead = readFrame();
+		
+		if(connection != null)
+		{
+			//Any frame, even an empty one, means the Pixy is alive. Data that didn't make up a frame counts too, the connection
+			//notices that on its own.
+			if(frameRead)
+			{
+				connection.markHealthy();
+			}
+			
+			//While the connection is being recovered, hand out empty stale frames rather than holding on to the last good one.
+			//Whatever the old device left behind doesn't belong with what the new one sends, so throw it away too.
+			if(!connection.isHealthy())
+			{
+				discardWords();
+				
+				frame.clear(clock.getAsDouble());
+				frame.setStale(true);
+				
+				for(int i = 0; i < detections.length; i++)
+				{
+					detections[i] = null;
+				}
+				
+				frameRead = true;
+			}
+		}
+		
+		//The frame is done, hand it off to everything that wants to know about it
+		if(frameRead)
+		{
+			processFrame();
+		}
+	}
+	
+	/**
+	 * Builds a pan/tilt servo command in the servo buffer and sends it, the positions have to already be in range
+	 * 
+	 * @param pan The pan of the Pixy camera, ranging from 0 to 1000
+	 * @param tilt The tilt of the Pixy camera, ranging from 0 to 1000
+	 */
+	private synchronized void writePanTilt(int pan, int tilt)
+	{
+		servoBuffer.clear();
+		
+		//Put the sync word into the buffer that indicates that this data is for the servos
+		servoBuffer.put((byte) 0x00);
+		servoBuffer.put((byte) 0xFF);
+		
+		//Put the pan and tilt shorts into the buffer
+		servoBuffer.putShort((short) pan);
+		servoBuffer.putShort((short) tilt);
+		
+		//Write to the communication hardware
+		comms.write(servoBuffer);
+	}
+	
+	/**
+	 * Creates the communication hardware, and keeps the factory around in case the connection watchdog is turned on
+	 * 
+	 * @param factory Creates a new communication object
+	 */
+	private void openComms(Supplier<CommMiddleMan> factory)
+	{
+		commsFactory = factory;
+		comms = factory.get();
+	}
+	
+	/**
+	 * Replaces where frame timestamps come from, so the parser can be run somewhere without an FPGA
+	 * 
+	 * @param clock The clock to use, in seconds
+	 */
+	void setClock(DoubleSupplier clock)
+	{
+		this.clock = clock;
+	}
+	
+	/**
+	 * Called once a full frame has been read, this passes the frame along to any of the optional
+	 * processing that has been turned on
+	 */
+	private void processFrame()
+	{
+		//Follow the target first, the less time between seeing it and moving the servos the better
+		if(panTiltTracker != null && panTiltTracker.update(frame))
+		{
+			writePanTilt(panTiltTracker.getPan(), panTiltTracker.getTilt());
+		}
+		
+		//Record the frame in the history if we're keeping one
+		if(history != null)
+		{
+			history.record(frame);
+		}
+		
+		//Merge the fragmented blocks if that's turned on
+		if(merger != null)
+		{
+			merger.merge(frame);
+		}
+		
+		//Filter out the flickering blocks if that's turned on
+		if(flickerFilter != null)
+		{
+			flickerFilter.update(frame);
+		}
+		
+		//Update the target estimates if that's turned on
+		if(targetEstimator != null)
+		{
+			targetEstimator.update(frame);
+		}
+		
+		//Index the blocks by position if that's turned on
+		if(gridIndex != null)
+		{
+			gridIndex.update(frame);
+		}
+		
+		//And finally queue the frame up for the listeners, they're called once the lock has been let go of
+		dispatcher.frameParsed(frame);
+	}
+	
+	/**
+	 * Reads a frame in the background, called by the acquisition Notifier
+	 */
+	private void acquireFrame()
+	{
+		synchronized(this)
+		{
+			//stopAcquisition may have been called while we were waiting for the lock
+			if(acquiring)
+			{
+				updatePixyDetections();
+			}
+		}
+		
+		//Let the listeners know about the frame now that the lock has been let go of
+		dispatcher.dispatchPending();
 	}
 	
 	/**
@@ -415,6 +1228,22 @@ public class Pixy {
 		//Create a new array of PixyDetection objects that is the maximum number of allowed objects
 		detections = new PixyDetection[maxAllowedObjects];
 		
+		//Create the frame that the primitive version of the detections are stored in
+		frame = new PixyFrame(maxAllowedObjects);
+		
+		//Set up the parser's state, there's room for the biggest frame the Pixy can send (every block a color code) plus the
+		//start of the next one
+		frameWords = new short[FRAME_START_WORDS + maxAllowedObjects * MAX_BLOCK_WORDS + FRAME_START_WORDS];
+		discardWords();
+		
+		//Create the servo buffer and order it little endian
+		servoBuffer = ByteBuffer.allocateDirect(6);
+		servoBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		clock = Timer::getFPGATimestamp;
+		
+		//Create the dispatcher that hands frames out to listeners
+		dispatcher = new PixyEventDispatcher(this, maxAllowedObjects);
+		
 		//Set every value in the array to null initially
 		for(int i = 0; i < detections.length; i++)
 		{
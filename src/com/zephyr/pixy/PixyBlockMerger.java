@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.util.Arrays;
+
+/**
+ * The Pixy has a habit of splitting one physical target into several blocks of the same signature, usually when part of the
+ * target is shadowed or has a glare on it. This class glues those fragments back together. Blocks of the same signature whose
+ * bounding boxes overlap, or come within a set number of pixels of each other, are merged into a single block whose bounding box
+ * covers all of the fragments.
+ *
+ * The merging is done with a sort and sweep over the left edges of the blocks, and the groups are tracked with a union-find, so
+ * it's O(n log n) for the normal case where fragments are spread out across the image. Everything is allocated when the merger is
+ * created, nothing is created while merging.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyBlockMerger {
+	
+	//How far apart (in pixels) two blocks can be and still be merged
+	private int gap;
+	
+	//The bounding box edges of each input block
+	private int[] lefts;
+	private int[] rights;
+	private int[] tops;
+	private int[] bottoms;
+	
+	//Sort keys for the sweep, the left edge is packed in the upper half and the block index in the lower half
+	private long[] sortKeys;
+	
+	//The blocks whose right edge the sweep hasn't passed yet
+	private int[] active;
+	
+	//The union-find parent of each block, and the size of each set
+	private int[] parents;
+	private int[] setSizes;
+	
+	//Maps a union-find root to the group it was assigned, -1 if it hasn't been assigned one yet
+	private int[] groupOfRoot;
+	
+	//Running totals for each group of blocks
+	private int[] groupLefts;
+	private int[] groupRights;
+	private int[] groupTops;
+	private int[] groupBottoms;
+	private long[] groupAreas;
+	private double[] groupWeightedXs;
+	private double[] groupWeightedYs;
+	private int[] groupFragments;
+	private int[] groupLargest;
+	
+	//The merged blocks, and the extra information that doesn't fit in a PixyFrame, in the same order as the merged frame
+	private PixyFrame merged;
+	private long[] mergedAreas;
+	private double[] mergedWeightedXs;
+	private double[] mergedWeightedYs;
+	private int[] mergedFragments;
+	
+	/**
+	 * Creates a new PixyBlockMerger
+	 *
+	 * @param maxBlocks The maximum number of blocks in a frame that will be merged
+	 * @param gap How far apart (in pixels) two blocks of the same signature can be and still be merged, 0 only merges touching or overlapping blocks
+	 */
+	public PixyBlockMerger(int maxBlocks, int gap)
+	{
+		this.gap = gap;
+		
+		lefts = new int[maxBlocks];
+		rights = new int[maxBlocks];
+		tops = new int[maxBlocks];
+		bottoms = new int[maxBlocks];
+		
+		sortKeys = new long[maxBlocks];
+		active = new int[maxBlocks];
+		
+		parents = new int[maxBlocks];
+		setSizes = new int[maxBlocks];
+		groupOfRoot = new int[maxBlocks];
+		
+		groupLefts = new int[maxBlocks];
+		groupRights = new int[maxBlocks];
+		groupTops = new int[maxBlocks];
+		groupBottoms = new int[maxBlocks];
+		groupAreas = new long[maxBlocks];
+		groupWeightedXs = new double[maxBlocks];
+		groupWeightedYs = new double[maxBlocks];
+		groupFragments = new int[maxBlocks];
+		groupLargest = new int[maxBlocks];
+		
+		merged = new PixyFrame(maxBlocks);
+		mergedAreas = new long[maxBlocks];
+		mergedWeightedXs = new double[maxBlocks];
+		mergedWeightedYs = new double[maxBlocks];
+		mergedFragments = new int[maxBlocks];
+	}
+	
+	/**
+	 * Returns how far apart two blocks can be and still be merged
+	 *
+	 * @return The merge gap in pixels
+	 */
+	public int getGap()
+	{
+		return gap;
+	}
+	
+	/**
+	 * Sets how far apart two blocks can be and still be merged
+	 *
+	 * @param gap The merge gap in pixels
+	 */
+	public void setGap(int gap)
+	{
+		this.gap = gap;
+	}
+	
+	/**
+	 * Merges the fragmented blocks in a frame. The result is sorted largest to smallest by bounding box area,
+	 * the same way the Pixy sorts its blocks, and has the same timestamp as the input frame.
+	 *
+	 * @param frame The frame to merge the blocks of
+	 * @return The merged frame, this is the same object as getMergedFrame() and is overwritten by the next merge
+	 */
+	public PixyFrame merge(PixyFrame frame)
+	{
+		int count = Math.min(frame.getBlockCount(), lefts.length);
+		
+		//Work out the bounding box of each block and build the sort keys
+		for(int i = 0; i < count; i++)
+		{
+			lefts[i] = frame.getCenterX(i) - frame.getObjectWidth(i) / 2;
+			rights[i] = lefts[i] + frame.getObjectWidth(i);
+			tops[i] = frame.getCenterY(i) - frame.getObjectHeight(i) / 2;
+			bottoms[i] = tops[i] + frame.getObjectHeight(i);
+			
+			parents[i] = i;
+			setSizes[i] = 1;
+			groupOfRoot[i] = -1;
+			
+			//Offset the left edge so that negative values still sort correctly
+			sortKeys[i] = ((long) (lefts[i] + 0x8000) << 32) | i;
+		}
+		
+		Arrays.sort(sortKeys, 0, count);
+		
+		//Sweep from left to right, only comparing against blocks that could still be within reach
+		int activeCount = 0;
+		
+		for(int k = 0; k < count; k++)
+		{
+			int current = (int) sortKeys[k];
+			int newActiveCount = 0;
+			
+			for(int a = 0; a < activeCount; a++)
+			{
+				int other = active[a];
+				
+				//If the sweep has moved past this block it can't touch anything else, drop it
+				if(rights[other] + gap < lefts[current])
+				{
+					continue;
+				}
+				
+				active[newActiveCount++] = other;
+				
+				//Merge the two if they're the same kind of block and close enough vertically
+				if(frame.getSignatureNumber(other) == frame.getSignatureNumber(current) &&
+						frame.getSyncWord(other) == frame.getSyncWord(current) &&
+						tops[current] <= bottoms[other] + gap && tops[other] <= bottoms[current] + gap)
+				{
+					union(current, other);
+				}
+			}
+			
+			active[newActiveCount++] = current;
+			activeCount = newActiveCount;
+		}
+		
+		//Add every block into the totals of the group it ended up in, going in the Pixy's order keeps the groups roughly sorted already
+		int groupCount = 0;
+		
+		for(int i = 0; i < count; i++)
+		{
+			int root = find(i);
+			int group = groupOfRoot[root];
+			
+			long area = (long) frame.getObjectWidth(i) * frame.getObjectHeight(i);
+			
+			if(group < 0)
+			{
+				//First block of the group, start the totals off with it
+				group = groupCount++;
+				groupOfRoot[root] = group;
+				
+				groupLefts[group] = lefts[i];
+				groupRights[group] = rights[i];
+				groupTops[group] = tops[i];
+				groupBottoms[group] = bottoms[i];
+				groupAreas[group] = 0;
+				groupWeightedXs[group] = 0;
+				groupWeightedYs[group] = 0;
+				groupFragments[group] = 0;
+				groupLargest[group] = i;
+			}
+			else
+			{
+				groupLefts[group] = Math.min(groupLefts[group], lefts[i]);
+				groupRights[group] = Math.max(groupRights[group], rights[i]);
+				groupTops[group] = Math.min(groupTops[group], tops[i]);
+				groupBottoms[group] = Math.max(groupBottoms[group], bottoms[i]);
+				
+				if(area > (long) frame.getObjectWidth(groupLargest[group]) * frame.getObjectHeight(groupLargest[group]))
+				{
+					groupLargest[group] = i;
+				}
+			}
+			
+			groupAreas[group] += area;
+			groupWeightedXs[group] += area * frame.getCenterX(i);
+			groupWeightedYs[group] += area * frame.getCenterY(i);
+			groupFragments[group]++;
+		}
+		
+		//Sort the groups by bounding box area, largest first, reusing the sort keys since the sweep is done with them
+		for(int g = 0; g < groupCount; g++)
+		{
+			long boxArea = (long) (groupRights[g] - groupLefts[g]) * (groupBottoms[g] - groupTops[g]);
+			
+			//Negate the area so an ascending sort puts the largest first
+			sortKeys[g] = (-boxArea << 32) | g;
+		}
+		
+		Arrays.sort(sortKeys, 0, groupCount);
+		
+		//Finally build the merged frame
+		merged.clear(frame.getTimestamp());
+		merged.setStale(frame.isStale());
+		
+		for(int k = 0; k < groupCount; k++)
+		{
+			int g = (int) sortKeys[k];
+			int largest = groupLargest[g];
+			int width = groupRights[g] - groupLefts[g];
+			int height = groupBottoms[g] - groupTops[g];
+			
+			//The sync word, signature and angle come from the largest fragment
+			merged.addBlock(frame.getSyncWord(largest), frame.getSignatureNumber(largest),
+					(short) (groupLefts[g] + width / 2), (short) (groupTops[g] + height / 2),
+					(short) width, (short) height, frame.getAngle(largest));
+			
+			mergedAreas[k] = groupAreas[g];
+			mergedFragments[k] = groupFragments[g];
+			
+			//A group made up of nothing but zero size blocks has no area to weigh by, so just use the box center
+			if(groupAreas[g] > 0)
+			{
+				mergedWeightedXs[k] = groupWeightedXs[g] / groupAreas[g];
+				mergedWeightedYs[k] = groupWeightedYs[g] / groupAreas[g];
+			}
+			else
+			{
+				mergedWeightedXs[k] = groupLefts[g] + width / 2.0;
+				mergedWeightedYs[k] = groupTops[g] + height / 2.0;
+			}
+		}
+		
+		return merged;
+	}
+	
+	/**
+	 * Returns the frame of merged blocks from the last call to merge
+	 *
+	 * @return The merged frame
+	 */
+	public PixyFrame getMergedFrame()
+	{
+		return merged;
+	}
+	
+	/**
+	 * Returns the total pixel area of all the fragments that make up a merged block. Fragments that overlap
+	 * each other are counted more than once.
+	 *
+	 * @param block The index of the block in the merged frame
+	 * @return The total pixel area of the fragments
+	 */
+	public long getPixelArea(int block)
+	{
+		return mergedAreas[block];
+	}
+	
+	/**
+	 * Returns the center X position of a merged block, where each fragment is weighted by its pixel area. This tends to
+	 * be a better estimate of where the target actually is than the center of the bounding box.
+	 *
+	 * @param block The index of the block in the merged frame
+	 * @return The area weighted center X position
+	 */
+	public double getWeightedCenterX(int block)
+	{
+		return mergedWeightedXs[block];
+	}
+	
+	/**
+	 * Returns the center Y position of a merged block, where each fragment is weighted by its pixel area.
+	 *
+	 * @param block The index of the block in the merged frame
+	 * @return The area weighted center Y position
+	 */
+	public double getWeightedCenterY(int block)
+	{
+		return mergedWeightedYs[block];
+	}
+	
+	/**
+	 * Returns the number of fragments that were merged into a block
+	 *
+	 * @param block The index of the block in the merged frame
+	 * @return The number of fragments, 1 if the block wasn't merged with anything
+	 */
+	public int getFragmentCount(int block)
+	{
+		return mergedFragments[block];
+	}
+	
+	/**
+	 * Finds the root of the set a block belongs to, flattening the path as it goes
+	 */
+	private int find(int block)
+	{
+		while(parents[block] != block)
+		{
+			parents[block] = parents[parents[block]];
+			block = parents[block];
+		}
+		
+		return block;
+	}
+	
+	/**
+	 * Joins the sets two blocks belong to, the smaller set is always attached to the larger one
+	 */
+	private void union(int first, int second)
+	{
+		int firstRoot = find(first);
+		int secondRoot = find(second);
+		
+		if(firstRoot == secondRoot)
+		{
+			return;
+		}
+		
+		if(setSizes[firstRoot] < setSizes[secondRoot])
+		{
+			int temp = firstRoot;
+			firstRoot = secondRoot;
+			secondRoot = temp;
+		}
+		
+		parents[secondRoot] = firstRoot;
+		setSizes[firstRoot] += setSizes[secondRoot];
+	}
+}
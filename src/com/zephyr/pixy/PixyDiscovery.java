@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import com.zephyr.internal.CommMiddleMan;
+import com.zephyr.internal.I2CComm;
+import com.zephyr.internal.SPIComm;
+import com.zephyr.internal.WordDecoder;
+
+import edu.wpi.first.wpilibj.I2C;
+import edu.wpi.first.wpilibj.SPI;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Finds Pixys connected over I2C and SPI when the robot starts up, rather than assuming they're at the default address
+ * or on a specific chip select. Each address or chip select is given a short deadline to send the start of a frame (two
+ * sync words in a row) or a block with a matching checksum, anything that does is turned into a ready to use Pixy. A single
+ * sync word isn't enough, noise or some other device at the same address comes up with one often enough to be fooled.
+ *
+ * Addresses on the same bus have to be probed one after another, but separate buses (the onboard and MXP I2C ports,
+ * the onboard and MXP SPI ports) are probed at the same time. That way the time it takes is bounded by the busiest bus,
+ * roughly the number of things probed on it multiplied by the deadline. If a bus takes longer than that it's given up on,
+ * and any Pixys it finds after that are freed once it finishes rather than left holding on to their devices.
+ *
+ * The Pixy only sends frames when it has something to report, so make sure each camera can see one of its signatures
+ * while this runs.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyDiscovery {
+	
+	/**
+	 * The default amount of time each address or chip select has to send a frame, in seconds
+	 */
+	public static final double DEFAULT_DEADLINE = 0.1;
+	
+	/**
+	 * The lowest I2C address that is probed by default
+	 */
+	public static final int DEFAULT_FIRST_I2C_ADDR = 0x54;
+	
+	/**
+	 * The highest I2C address that is probed by default
+	 */
+	public static final int DEFAULT_LAST_I2C_ADDR = 0x57;
+	
+	//The most words we'll read looking for a frame before giving up, in case reads come back faster than the deadline can catch
+	private static final int MAX_PROBE_WORDS = 2000;
+	
+	//The words of a block after the checksum, for a color code block
+	private static final int MAX_BLOCK_WORDS = 6;
+	
+	//Only static methods here
+	private PixyDiscovery()
+	{
+	}
+	
+	/**
+	 * Probes the default I2C address range on both I2C ports and every SPI port with the default deadline
+	 *
+	 * @param maxAllowedObjects The maximum number of objects for each Pixy that's found
+	 * @return Every Pixy that was found, I2C first, in port and address order
+	 */
+	public static List<Pixy> discover(int maxAllowedObjects)
+	{
+		return discover(I2C.Port.values(), DEFAULT_FIRST_I2C_ADDR, DEFAULT_LAST_I2C_ADDR, SPI.Port.values(),
+				maxAllowedObjects, DEFAULT_DEADLINE);
+	}
+	
+	/**
+	 * Probes a range of addresses on some I2C ports and a set of SPI ports
+	 *
+	 * @param i2cPorts The I2C ports to probe, can be empty
+	 * @param firstAddress The first I2C address to probe on each port
+	 * @param lastAddress The last I2C address to probe on each port
+	 * @param spiPorts The SPI ports (chip selects) to probe, can be empty
+	 * @param maxAllowedObjects The maximum number of objects for each Pixy that's found
+	 * @param deadline How long each address or chip select has to send a frame, in seconds
+	 * @return Every Pixy that was found, I2C first, in port and address order
+	 */
+	public static List<Pixy> discover(I2C.Port[] i2cPorts, int firstAddress, int lastAddress, SPI.Port[] spiPorts,
+			int maxAllowedObjects, double deadline)
+	{
+		//Each I2C port is its own bus, the onboard SPI chip selects share one bus and the MXP port is another. Each bus hands back
+		//its own list of what it found, so nothing is shared with a bus that's still running after we've given up on it.
+		List<Supplier<List<Pixy>>> buses = new ArrayList<>();
+		int busiestProbeCount = 0;
+		
+		for(I2C.Port port : i2cPorts)
+		{
+			buses.add(() -> discoverI2C(port, firstAddress, lastAddress, maxAllowedObjects, deadline));
+			
+			busiestProbeCount = Math.max(busiestProbeCount, lastAddress - firstAddress + 1);
+		}
+		
+		List<SPI.Port> onboardSPI = new ArrayList<>();
+		List<SPI.Port> mxpSPI = new ArrayList<>();
+		
+		for(SPI.Port port : spiPorts)
+		{
+			if(port == SPI.Port.kMXP)
+			{
+				mxpSPI.add(port);
+			}
+			else
+			{
+				onboardSPI.add(port);
+			}
+		}
+		
+		List<List<SPI.Port>> spiBuses = new ArrayList<>();
+		spiBuses.add(onboardSPI);
+		spiBuses.add(mxpSPI);
+		
+		for(List<SPI.Port> bus : spiBuses)
+		{
+			if(bus.isEmpty())
+			{
+				continue;
+			}
+			
+			SPI.Port[] ports = bus.toArray(new SPI.Port[bus.size()]);
+			
+			buses.add(() -> discoverSPI(ports, maxAllowedObjects, deadline));
+			
+			busiestProbeCount = Math.max(busiestProbeCount, ports.length);
+		}
+		
+		List<Pixy> pixys = new ArrayList<>();
+		
+		if(buses.isEmpty())
+		{
+			return pixys;
+		}
+		
+		//One thread per bus, so buses are probed in parallel
+		ExecutorService executor = Executors.newFixedThreadPool(buses.size());
+		List<CompletableFuture<List<Pixy>>> futures = new ArrayList<>();
+		
+		for(Supplier<List<Pixy>> bus : buses)
+		{
+			futures.add(CompletableFuture.supplyAsync(bus, executor));
+		}
+		
+		//Every probe has its own deadline, so the busiest bus bounds the whole thing. Leave some slack for creating the devices.
+		double endTime = Timer.getFPGATimestamp() + busiestProbeCount * deadline + 0.5;
+		
+		int collected = 0;
+		
+		for(; collected < futures.size(); collected++)
+		{
+			try
+			{
+				long remaining = (long) ((endTime - Timer.getFPGATimestamp()) * 1000);
+				
+				pixys.addAll(futures.get(collected).get(Math.max(remaining, 0), TimeUnit.MILLISECONDS));
+			}
+			catch(TimeoutException e)
+			{
+				System.out.println("PIXY DISCOVERY TIMED OUT ON A BUS!");
+				abandon(futures.get(collected));
+			}
+			catch(ExecutionException e)
+			{
+				System.out.println("PIXY DISCOVERY FAILED ON A BUS! " + e.getCause());
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		//If we were interrupted, give up on every bus we didn't get to
+		for(; collected < futures.size(); collected++)
+		{
+			abandon(futures.get(collected));
+		}
+		
+		//A blocking read can't be interrupted, but this stops a bus that's given up on from probing anything after its current read
+		executor.shutdownNow();
+		
+		return pixys;
+	}
+	
+	/**
+	 * Gives up on a bus that's still being probed. Whatever it finds is freed once it finishes, so the devices aren't held on to.
+	 */
+	private static void abandon(CompletableFuture<List<Pixy>> bus)
+	{
+		bus.thenAccept(found -> {
+			for(Pixy pixy : found)
+			{
+				pixy.free();
+			}
+		});
+	}
+	
+	/**
+	 * Probes a range of addresses on one I2C port, one after another
+	 *
+	 * @param port The I2C port to probe
+	 * @param firstAddress The first address to probe
+	 * @param lastAddress The last address to probe
+	 * @param maxAllowedObjects The maximum number of objects for each Pixy that's found
+	 * @param deadline How long each address has to send a frame, in seconds
+	 * @return Every Pixy that was found, in address order
+	 */
+	public static List<Pixy> discoverI2C(I2C.Port port, int firstAddress, int lastAddress, int maxAllowedObjects, double deadline)
+	{
+		List<Pixy> pixys = new ArrayList<>();
+		
+		//Stop early if discover has given up on this bus
+		for(int address = firstAddress; address <= lastAddress && !Thread.currentThread().isInterrupted(); address++)
+		{
+			I2C i2c = new I2C(port, address);
+			
+			//If nothing acknowledges the address there's no reason to wait around for a frame
+			if(i2c.addressOnly())
+			{
+				i2c.free();
+				continue;
+			}
+			
+			I2CComm comm = new I2CComm(i2c);
+			
+			if(waitForFrame(comm, deadline))
+			{
+				System.out.println("PIXY FOUND ON I2C " + port + " AT 0x" + Integer.toHexString(address));
+				
+				int foundAddress = address;
+				pixys.add(new Pixy(comm, () -> new I2CComm(new I2C(port, foundAddress)), maxAllowedObjects));
+			}
+			else
+			{
+				i2c.free();
+			}
+		}
+		
+		return pixys;
+	}
+	
+	/**
+	 * Probes a set of SPI ports (chip selects), one after another
+	 *
+	 * @param ports The SPI ports to probe
+	 * @param maxAllowedObjects The maximum number of objects for each Pixy that's found
+	 * @param deadline How long each chip select has to send a frame, in seconds
+	 * @return Every Pixy that was found, in the same order as the ports
+	 */
+	public static List<Pixy> discoverSPI(SPI.Port[] ports, int maxAllowedObjects, double deadline)
+	{
+		List<Pixy> pixys = new ArrayList<>();
+		
+		for(SPI.Port port : ports)
+		{
+			//Stop early if discover has given up on this bus
+			if(Thread.currentThread().isInterrupted())
+			{
+				break;
+			}
+			
+			SPI spi = new SPI(port);
+			SPIComm comm = new SPIComm(spi);
+			
+			if(waitForFrame(comm, deadline))
+			{
+				System.out.println("PIXY FOUND ON SPI " + port);
+				pixys.add(new Pixy(comm, () -> new SPIComm(new SPI(port)), maxAllowedObjects));
+			}
+			else
+			{
+				spi.free();
+			}
+		}
+		
+		return pixys;
+	}
+	
+	/**
+	 * Reads words until the start of a frame or a block with a matching checksum shows up, or the deadline passes. A single sync
+	 * word on its own isn't trusted, one turns up in noise or in another device's data far too often.
+	 *
+	 * @return True if a frame was seen before the deadline
+	 */
+	private static boolean waitForFrame(CommMiddleMan comm, double deadline)
+	{
+		double endTime = Timer.getFPGATimestamp() + deadline;
+		
+		short[] blockWords = new short[MAX_BLOCK_WORDS];
+		short previous = 0;
+		
+		for(int i = 0; i < MAX_PROBE_WORDS && Timer.getFPGATimestamp() < endTime; i++)
+		{
+			Short word = comm.readShort();
+			
+			if(word == null)
+			{
+				previous = 0;
+				continue;
+			}
+			
+			boolean sync = word == Pixy.NORMAL_SYNC_WORD || word == Pixy.CC_SYNC_WORD;
+			
+			if(previous == Pixy.NORMAL_SYNC_WORD || previous == Pixy.CC_SYNC_WORD)
+			{
+				//Two sync words in a row is the start of a frame
+				if(sync)
+				{
+					return true;
+				}
+				
+				//Otherwise this is the checksum of a block, which has to match the rest of the block
+				int blockLength = previous == Pixy.CC_SYNC_WORD ? MAX_BLOCK_WORDS : MAX_BLOCK_WORDS - 1;
+				
+				if(comm.readWords(blockWords, 0, blockLength) == blockLength && blockWords[0] != 0
+						&& WordDecoder.checksumMatches(word, blockWords, 0, blockLength))
+				{
+					return true;
+				}
+				
+				i += blockLength;
+				previous = 0;
+				continue;
+			}
+			
+			if(word == Pixy.OUT_OF_SYNC_WORD)
+			{
+				//We're a byte off, skip one so the next sync word lines up
+				comm.readByte();
+			}
+			
+			previous = word;
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands frames and signature acquired/lost events out to PixyListeners. The Pixy calls frameParsed every time it finishes
+ * reading a frame, this works out which signatures have been acquired or lost (with some hysteresis so a block flickering
+ * for a single frame doesn't cause a storm of events) and queues everything up. Once the Pixy has let go of its lock it
+ * calls dispatchPending, which hands the queue to the listener executor. That way a listener never runs while the Pixy is
+ * locked, so a slow listener can't hold up other threads using the Pixy, and a listener can call back into the Pixy.
+ *
+ * The queue is bounded and coalescing. There's only ever one frame waiting, a newer frame replaces an older one that hasn't
+ * been delivered yet. There's only ever one event waiting per signature, if a signature is lost before being seen was delivered
+ * (or the other way around) the two cancel out. This way a slow executor can never cause the queue to grow without end.
+ *
+ * Acquired and lost are worked out for every frame whether anyone is listening or not, so when a listener is added it's first
+ * told about every signature that is already acquired, before it gets any other events. A signature that isn't acquired and
+ * has been missing for as long as it takes to be lost gives its slot back, so signatures that only show up now and then
+ * don't use up the table.
+ *
+ * @author Bradley Bickford
+ *
+ */
+class PixyEventDispatcher {
+	
+	//The default number of frames in a row a signature has to be seen before it's acquired
+	static final int DEFAULT_ACQUIRE_FRAMES = 2;
+	
+	//The default number of frames in a row a signature has to be missing before it's lost
+	static final int DEFAULT_LOSE_FRAMES = 5;
+	
+	//The values used for the pending event of each signature
+	private static final int NO_EVENT = 0;
+	private static final int SEEN_EVENT = 1;
+	private static final int LOST_EVENT = 2;
+	
+	//The Pixy that the events come from
+	private Pixy pixy;
+	
+	//An empty set of listeners
+	private static final PixyListener[] NO_LISTENERS = new PixyListener[0];
+	
+	//The listeners, replaced with a new array whenever one is added or removed so handing out events doesn't create anything
+	private volatile PixyListener[] listeners;
+	
+	//The listeners added since the last drain, they're told about every signature that's already acquired before anything else
+	private PixyListener[] newListeners;
+	
+	//What the listeners are called on
+	private volatile Executor executor;
+	
+	//Hysteresis settings
+	private int acquireFrames;
+	private int loseFrames;
+	
+	//The per signature state used to work out acquired and lost, only ever touched by the thread reading frames
+	private SignatureTable signatures;
+	private boolean[] presentThisFrame;
+	private int[] presentStreaks;
+	private int[] absentStreaks;
+	private boolean[] acquired;
+	
+	//The queue, guarded by this object's lock
+	private PixyFrame pendingFrame;
+	private boolean framePending;
+	private int[] pendingEvents;
+	private boolean drainScheduled;
+	private long coalescedFrames;
+	private long coalescedEvents;
+	
+	//Copies of what's being handed out, only ever touched by the drain task (which never runs twice at once)
+	private PixyFrame dispatchFrame;
+	private short[] dispatchSignatures;
+	private int[] dispatchEvents;
+	private short[] replaySignatures;
+	
+	//The task given to the executor, created once so scheduling it doesn't create anything
+	private Runnable drainTask;
+	
+	/**
+	 * Creates a new PixyEventDispatcher that calls listeners on the thread that read the frame
+	 *
+	 * @param pixy The Pixy the events come from
+	 * @param maxBlocks The maximum number of blocks in a frame
+	 */
+	PixyEventDispatcher(Pixy pixy, int maxBlocks)
+	{
+		this.pixy = pixy;
+		
+		listeners = NO_LISTENERS;
+		newListeners = NO_LISTENERS;
+		executor = Runnable::run;
+		
+		acquireFrames = DEFAULT_ACQUIRE_FRAMES;
+		loseFrames = DEFAULT_LOSE_FRAMES;
+		
+		signatures = new SignatureTable(SignatureTable.DEFAULT_CAPACITY);
+		presentThisFrame = new boolean[signatures.getCapacity()];
+		presentStreaks = new int[signatures.getCapacity()];
+		absentStreaks = new int[signatures.getCapacity()];
+		acquired = new boolean[signatures.getCapacity()];
+		
+		pendingFrame = new PixyFrame(maxBlocks);
+		pendingEvents = new int[signatures.getCapacity()];
+		
+		dispatchFrame = new PixyFrame(maxBlocks);
+		dispatchSignatures = new short[signatures.getCapacity()];
+		dispatchEvents = new int[signatures.getCapacity()];
+		replaySignatures = new short[signatures.getCapacity()];
+		
+		drainTask = this::drain;
+	}
+	
+	/**
+	 * Adds a listener, adding the same listener twice means it gets called twice. The listener is told about every signature
+	 * that's already acquired through the executor, so this can be called from anywhere.
+	 */
+	void addListener(PixyListener listener)
+	{
+		synchronized(this)
+		{
+			listeners = append(listeners, listener);
+			newListeners = append(newListeners, listener);
+		}
+		
+		dispatchPending();
+	}
+	
+	/**
+	 * Removes a listener
+	 *
+	 * @return True if the listener was found and removed
+	 */
+	synchronized boolean removeListener(PixyListener listener)
+	{
+		for(int i = 0; i < listeners.length; i++)
+		{
+			if(listeners[i] == listener)
+			{
+				PixyListener[] newListeners = new PixyListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+				
+				listeners = newListeners;
+				
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Sets what the listeners are called on
+	 */
+	void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+	
+	/**
+	 * Sets how many frames in a row a signature has to be seen before it's acquired, and missing before it's lost
+	 */
+	synchronized void setHysteresis(int acquireFrames, int loseFrames)
+	{
+		this.acquireFrames = Math.max(1, acquireFrames);
+		this.loseFrames = Math.max(1, loseFrames);
+	}
+	
+	/**
+	 * Returns the number of frames that were replaced by a newer frame before they could be delivered
+	 */
+	synchronized long getCoalescedFrameCount()
+	{
+		return coalescedFrames;
+	}
+	
+	/**
+	 * Returns the number of signature events that were cancelled out by an opposite event before they could be delivered
+	 */
+	synchronized long getCoalescedEventCount()
+	{
+		return coalescedEvents;
+	}
+	
+	/**
+	 * Called by the Pixy every time a frame has been read
+	 *
+	 * @param frame The frame that was just read
+	 */
+	void frameParsed(PixyFrame frame)
+	{
+		//Mark every signature that's in this frame
+		for(int i = 0; i < frame.getBlockCount(); i++)
+		{
+			int slot = signatures.findOrAdd(frame.getSignatureNumber(i));
+			
+			//If the table is full we just can't track this one
+			if(slot >= 0)
+			{
+				presentThisFrame[slot] = true;
+			}
+		}
+		
+		synchronized(this)
+		{
+			//Work out which signatures were acquired or lost this frame
+			for(int slot = 0; slot < signatures.size(); slot++)
+			{
+				if(!signatures.isUsed(slot))
+				{
+					continue;
+				}
+				
+				if(presentThisFrame[slot])
+				{
+					presentStreaks[slot]++;
+					absentStreaks[slot] = 0;
+					
+					if(!acquired[slot] && presentStreaks[slot] >= acquireFrames)
+					{
+						acquired[slot] = true;
+						queueEvent(slot, SEEN_EVENT);
+					}
+				}
+				else
+				{
+					absentStreaks[slot]++;
+					presentStreaks[slot] = 0;
+					
+					if(acquired[slot] && absentStreaks[slot] >= loseFrames)
+					{
+						acquired[slot] = false;
+						queueEvent(slot, LOST_EVENT);
+					}
+					else if(!acquired[slot] && absentStreaks[slot] >= loseFrames && pendingEvents[slot] == NO_EVENT)
+					{
+						//Gone for good and nothing left to hand out about it, so give the slot back
+						signatures.free(slot);
+						absentStreaks[slot] = 0;
+					}
+				}
+				
+				presentThisFrame[slot] = false;
+			}
+			
+			//Nobody is listening, so there's no reason to queue anything else up
+			if(listeners.length == 0)
+			{
+				clearPendingEvents();
+				return;
+			}
+			
+			//Replace whatever frame was waiting with this one
+			if(framePending)
+			{
+				coalescedFrames++;
+			}
+			
+			pendingFrame.copyFrom(frame);
+			framePending = true;
+		}
+	}
+	
+	/**
+	 * Hands whatever is waiting to the executor. The Pixy calls this after every frame once it has let go of its lock.
+	 */
+	void dispatchPending()
+	{
+		synchronized(this)
+		{
+			//Only schedule the drain task if there's something to hand out and it isn't already going to run
+			if(drainScheduled || !hasPending())
+			{
+				return;
+			}
+			
+			drainScheduled = true;
+		}
+		
+		try
+		{
+			executor.execute(drainTask);
+		}
+		catch(RejectedExecutionException e)
+		{
+			//The executor won't take it, so the next frame will have to try again
+			System.out.println("PIXY LISTENER EXECUTOR REJECTED DISPATCH!");
+			
+			synchronized(this)
+			{
+				drainScheduled = false;
+			}
+		}
+	}
+	
+	/**
+	 * Queues an event for a signature, cancelling out the opposite event if one is already waiting. Has to be called while holding the lock.
+	 */
+	private void queueEvent(int slot, int event)
+	{
+		if(pendingEvents[slot] == NO_EVENT)
+		{
+			pendingEvents[slot] = event;
+		}
+		else
+		{
+			//Events for a signature always alternate, so anything waiting has to be the opposite of this one
+			pendingEvents[slot] = NO_EVENT;
+			coalescedEvents += 2;
+		}
+	}
+	
+	/**
+	 * Returns whether or not there's anything waiting to be handed out. Has to be called while holding the lock.
+	 */
+	private boolean hasPending()
+	{
+		if(framePending || newListeners.length > 0)
+		{
+			return true;
+		}
+		
+		for(int slot = 0; slot < pendingEvents.length; slot++)
+		{
+			if(pendingEvents[slot] != NO_EVENT)
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns a copy of a set of listeners with one more on the end
+	 */
+	private static PixyListener[] append(PixyListener[] listeners, PixyListener listener)
+	{
+		PixyListener[] appended = new PixyListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, appended, 0, listeners.length);
+		appended[listeners.length] = listener;
+		
+		return appended;
+	}
+	
+	/**
+	 * Throws away every waiting signature event. Has to be called while holding the lock.
+	 */
+	private void clearPendingEvents()
+	{
+		for(int slot = 0; slot < pendingEvents.length; slot++)
+		{
+			pendingEvents[slot] = NO_EVENT;
+		}
+	}
+	
+	/**
+	 * Hands out everything that's waiting, and keeps going until nothing is left
+	 */
+	private void drain()
+	{
+		while(true)
+		{
+			boolean hasFrame;
+			int eventCount = 0;
+			int replayCount = 0;
+			PixyListener[] currentListeners;
+			PixyListener[] replayListeners;
+			
+			synchronized(this)
+			{
+				//Work out what the listeners added since last time need to be caught up on, which is every signature that's acquired
+				//as far as the rest of the listeners know, taking into account the events that haven't been handed out yet
+				replayListeners = newListeners;
+				newListeners = NO_LISTENERS;
+				
+				if(replayListeners.length > 0)
+				{
+					for(int slot = 0; slot < signatures.size(); slot++)
+					{
+						boolean delivered = pendingEvents[slot] == NO_EVENT ? acquired[slot] : pendingEvents[slot] == LOST_EVENT;
+						
+						if(delivered)
+						{
+							replaySignatures[replayCount++] = signatures.getSignature(slot);
+						}
+					}
+				}
+				
+				//Grab the waiting frame
+				hasFrame = framePending;
+				
+				if(hasFrame)
+				{
+					dispatchFrame.copyFrom(pendingFrame);
+					framePending = false;
+				}
+				
+				//And the waiting signature events
+				for(int slot = 0; slot < signatures.size(); slot++)
+				{
+					if(pendingEvents[slot] != NO_EVENT)
+					{
+						dispatchSignatures[eventCount] = signatures.getSignature(slot);
+						dispatchEvents[eventCount] = pendingEvents[slot];
+						eventCount++;
+						
+						pendingEvents[slot] = NO_EVENT;
+					}
+				}
+				
+				//If there was nothing, we're done until the next frame schedules us again
+				if(!hasFrame && eventCount == 0 && replayListeners.length == 0)
+				{
+					drainScheduled = false;
+					return;
+				}
+				
+				//Grab the listeners while we still have the lock, so one added from here on is caught up next time around
+				currentListeners = listeners;
+			}
+			
+			//Catch the new listeners up first, unless they've already been removed again
+			for(int i = 0; i < replayListeners.length; i++)
+			{
+				if(!contains(currentListeners, replayListeners[i]))
+				{
+					continue;
+				}
+				
+				try
+				{
+					for(int r = 0; r < replayCount; r++)
+					{
+						replayListeners[i].onSignatureSeen(pixy, replaySignatures[r]);
+					}
+				}
+				catch(RuntimeException e)
+				{
+					System.out.println("PIXY LISTENER FAILED! " + e);
+				}
+			}
+			
+			for(int i = 0; i < currentListeners.length; i++)
+			{
+				try
+				{
+					//Signature events first, so a listener sees the target acquired before the frame it was acquired in
+					for(int e = 0; e < eventCount; e++)
+					{
+						if(dispatchEvents[e] == SEEN_EVENT)
+						{
+							currentListeners[i].onSignatureSeen(pixy, dispatchSignatures[e]);
+						}
+						else
+						{
+							currentListeners[i].onSignatureLost(pixy, dispatchSignatures[e]);
+						}
+					}
+					
+					if(hasFrame)
+					{
+						currentListeners[i].onFrame(pixy, dispatchFrame);
+					}
+				}
+				catch(RuntimeException e)
+				{
+					//One bad listener shouldn't stop the rest from hearing about the frame
+					System.out.println("PIXY LISTENER FAILED! " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether or not a listener is in a set of listeners
+	 */
+	private static boolean contains(PixyListener[] listeners, PixyListener listener)
+	{
+		for(int i = 0; i < listeners.length; i++)
+		{
+			if(listeners[i] == listener)
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+}
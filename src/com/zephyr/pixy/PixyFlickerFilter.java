@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * Blocks that are right on the edge of a signature's color threshold tend to flicker in and out from one frame to the next.
+ * This filter smooths that out by voting over a sliding window of recent frames. A block is only reported once it has been
+ * seen in at least a set number of the last few frames, and once it has been reported it keeps being reported for a grace period
+ * after it disappears, using the last place it was seen.
+ *
+ * The vote is kept for each block rather than each signature, so a second, flickering block of a signature that's already
+ * being reported doesn't get through on the first block's votes. Blocks are followed from frame to frame by matching each one
+ * to the nearest block of the same signature from the frame before, as long as it's within the match distance. A block that
+ * doesn't match anything starts a new track with an empty window. Blocks are matched largest first, the same order the Pixy
+ * sends them in, so when two blocks are close together the larger one gets the track.
+ *
+ * Each track's window is kept as a ring buffer of whether or not it was seen in each frame, along with a running count of hits.
+ * Every frame the oldest entry falls out of the count and the newest one goes in, so the window never has to be scanned again.
+ * A track that hasn't been seen for a whole window (and isn't in its grace period) is freed for a new block to use.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFlickerFilter {
+	
+	/**
+	 * The default farthest a block's center can move from one frame to the next and still count as the same block, in pixels
+	 */
+	public static final int DEFAULT_MATCH_DISTANCE = 30;
+	
+	//How many of the last windowFrames frames a block has to be in before it's reported
+	private int requiredFrames;
+	
+	//The number of frames in the window
+	private int windowFrames;
+	
+	//How many frames a block keeps being reported after it disappears
+	private int graceFrames;
+	
+	//The farthest a block can move between frames and still match its track
+	private int matchDistance;
+	
+	//The number of tracks, and whether or not each one is following a block
+	private int trackCount;
+	private boolean[] active;
+	
+	//Whether or not each track was seen in each frame of the window, windowFrames entries per track
+	private boolean[] presenceRing;
+	
+	//Where the newest frame is in each track's part of the ring
+	private int ringPosition;
+	
+	//The number of frames in the window each track was seen in
+	private int[] hitCounts;
+	
+	//The block each track matched in the current frame, or -1 if it didn't match one
+	private int[] matchedBlock;
+	
+	//Whether or not each track has passed the vote and is being reported
+	private boolean[] confirmed;
+	
+	//The number of frames since each track was last seen
+	private int[] framesSinceSeen;
+	
+	//The block each track last matched, one entry per track, used for matching and during the grace period
+	private PixyFrame lastSeen;
+	
+	//The track each block in the current frame matched, or -1 if there weren't any tracks left
+	private int[] blockTracks;
+	
+	//The filtered frame, and which of its blocks are being held over from an earlier frame
+	private PixyFrame filtered;
+	private boolean[] held;
+	
+	/**
+	 * Creates a new PixyFlickerFilter
+	 *
+	 * @param requiredFrames How many of the last windowFrames frames a block has to be seen in before it's reported
+	 * @param windowFrames The number of recent frames to vote over
+	 * @param graceFrames How many frames a block keeps being reported after it disappears
+	 * @param maxBlocks The maximum number of blocks in a frame
+	 */
+	public PixyFlickerFilter(int requiredFrames, int windowFrames, int graceFrames, int maxBlocks)
+	{
+		this.windowFrames = Math.max(1, windowFrames);
+		this.requiredFrames = Math.max(1, Math.min(requiredFrames, this.windowFrames));
+		this.graceFrames = Math.max(0, graceFrames);
+		
+		matchDistance = DEFAULT_MATCH_DISTANCE;
+		
+		//Every block in a frame can have a track, and so can every block that disappeared but is still being voted on or held,
+		//so twice as many tracks as blocks covers a whole frame moving at once
+		trackCount = Math.max(1, maxBlocks * 2);
+		
+		active = new boolean[trackCount];
+		presenceRing = new boolean[trackCount * this.windowFrames];
+		ringPosition = 0;
+		
+		hitCounts = new int[trackCount];
+		matchedBlock = new int[trackCount];
+		confirmed = new boolean[trackCount];
+		framesSinceSeen = new int[trackCount];
+		
+		//Every track gets its own entry in the last seen frame, in track order
+		lastSeen = new PixyFrame(trackCount);
+		
+		for(int track = 0; track < trackCount; track++)
+		{
+			lastSeen.addBlock((short) 0, (short) 0, (short) 0, (short) 0, (short) 0, (short) 0, (short) 0);
+			matchedBlock[track] = -1;
+		}
+		
+		blockTracks = new int[Math.max(1, maxBlocks)];
+		
+		filtered = new PixyFrame(maxBlocks + trackCount);
+		held = new boolean[maxBlocks + trackCount];
+	}
+	
+	/**
+	 * Sets the farthest a block's center can move from one frame to the next and still count as the same block
+	 *
+	 * @param matchDistance The match distance, in pixels
+	 */
+	public void setMatchDistance(int matchDistance)
+	{
+		this.matchDistance = Math.max(0, matchDistance);
+	}
+	
+	/**
+	 * Adds a new frame to the window and works out what should be reported for it
+	 *
+	 * @param frame The frame that was just parsed
+	 * @return The filtered frame, this is the same object as getFilteredFrame() and is overwritten by the next update
+	 */
+	public PixyFrame update(PixyFrame frame)
+	{
+		int blocks = Math.min(frame.getBlockCount(), blockTracks.length);
+		long maxDistance = (long) matchDistance * matchDistance;
+		
+		//Match every block to the nearest track of its signature that hasn't already been matched this frame
+		for(int i = 0; i < blocks; i++)
+		{
+			int best = -1;
+			long bestDistance = maxDistance;
+			int free = -1;
+			
+			for(int track = 0; track < trackCount; track++)
+			{
+				if(!active[track])
+				{
+					if(free == -1)
+					{
+						free = track;
+					}
+					
+					continue;
+				}
+				
+				if(matchedBlock[track] != -1 || lastSeen.getSignatureNumber(track) != frame.getSignatureNumber(i))
+				{
+					continue;
+				}
+				
+				long dx = lastSeen.getCenterX(track) - frame.getCenterX(i);
+				long dy = lastSeen.getCenterY(track) - frame.getCenterY(i);
+				long distance = dx * dx + dy * dy;
+				
+				if(distance <= bestDistance)
+				{
+					best = track;
+					bestDistance = distance;
+				}
+			}
+			
+			//Nothing close enough, so this is a new block and starts a track of its own with an empty window
+			if(best == -1 && free != -1)
+			{
+				best = free;
+				startTrack(best);
+			}
+			
+			//If every track is in use we just can't filter this one
+			blockTracks[i] = best;
+			
+			if(best != -1)
+			{
+				matchedBlock[best] = i;
+			}
+		}
+		
+		//Move the window forward a frame, the entry we land on is the oldest frame which is about to fall out
+		ringPosition = (ringPosition + 1) % windowFrames;
+		
+		for(int track = 0; track < trackCount; track++)
+		{
+			if(!active[track])
+			{
+				continue;
+			}
+			
+			int index = track * windowFrames + ringPosition;
+			boolean present = matchedBlock[track] != -1;
+			
+			//Take the oldest frame out of the count and put the newest one in
+			if(presenceRing[index])
+			{
+				hitCounts[track]--;
+			}
+			
+			presenceRing[index] = present;
+			
+			if(present)
+			{
+				hitCounts[track]++;
+				framesSinceSeen[track] = 0;
+				
+				//Passing the vote is only possible while the block is actually visible
+				if(hitCounts[track] >= requiredFrames)
+				{
+					confirmed[track] = true;
+				}
+			}
+			else
+			{
+				framesSinceSeen[track]++;
+				
+				//Out of grace, stop reporting it until it passes the vote again
+				if(framesSinceSeen[track] > graceFrames)
+				{
+					confirmed[track] = false;
+				}
+				
+				//Nothing left in the window to vote with and nothing to hold, so the track is free for another block
+				if(hitCounts[track] == 0 && !confirmed[track])
+				{
+					active[track] = false;
+				}
+			}
+		}
+		
+		filtered.clear(frame.getTimestamp());
+		filtered.setStale(frame.isStale());
+		
+		//Every block whose track is confirmed gets reported as is
+		for(int i = 0; i < blocks; i++)
+		{
+			if(blockTracks[i] != -1 && confirmed[blockTracks[i]])
+			{
+				addBlock(frame, i, false);
+			}
+		}
+		
+		for(int track = 0; track < trackCount; track++)
+		{
+			if(matchedBlock[track] != -1)
+			{
+				//Remember where it was in case it disappears next frame
+				copyLastSeen(frame, matchedBlock[track], track);
+				matchedBlock[track] = -1;
+			}
+			else if(active[track] && confirmed[track])
+			{
+				//Confirmed but not visible, so it's in its grace period, report where it was last seen
+				addBlock(lastSeen, track, true);
+			}
+		}
+		
+		return filtered;
+	}
+	
+	/**
+	 * Returns the filtered frame from the last update
+	 *
+	 * @return The filtered frame
+	 */
+	public PixyFrame getFilteredFrame()
+	{
+		return filtered;
+	}
+	
+	/**
+	 * Returns whether or not a block in the filtered frame is being held over from an earlier frame because it disappeared
+	 * and is in its grace period
+	 *
+	 * @param block The index of the block in the filtered frame
+	 * @return True if the block is from an earlier frame
+	 */
+	public boolean isHeld(int block)
+	{
+		return held[block];
+	}
+	
+	/**
+	 * Returns whether or not any block of a signature currently passes the filter
+	 *
+	 * @param signatureNumber The signature number
+	 * @return True if a block of the signature is being reported
+	 */
+	public boolean isConfirmed(short signatureNumber)
+	{
+		for(int track = 0; track < trackCount; track++)
+		{
+			if(active[track] && confirmed[track] && lastSeen.getSignatureNumber(track) == signatureNumber)
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Forgets every frame in the window
+	 */
+	public void reset()
+	{
+		for(int track = 0; track < trackCount; track++)
+		{
+			active[track] = false;
+			matchedBlock[track] = -1;
+		}
+	}
+	
+	/**
+	 * Starts a track over with an empty window
+	 */
+	private void startTrack(int track)
+	{
+		for(int frame = 0; frame < windowFrames; frame++)
+		{
+			presenceRing[track * windowFrames + frame] = false;
+		}
+		
+		active[track] = true;
+		hitCounts[track] = 0;
+		confirmed[track] = false;
+		framesSinceSeen[track] = 0;
+	}
+	
+	/**
+	 * Stores a block in the frame as the last place a track was seen
+	 */
+	private void copyLastSeen(PixyFrame frame, int block, int track)
+	{
+		lastSeen.setBlock(track, frame.getSyncWord(block), frame.getSignatureNumber(block), frame.getCenterX(block),
+				frame.getCenterY(block), frame.getObjectWidth(block), frame.getObjectHeight(block), frame.getAngle(block));
+	}
+	
+	/**
+	 * Copies a block from another frame into the filtered frame
+	 */
+	private void addBlock(PixyFrame frame, int block, boolean isHeld)
+	{
+		if(filtered.addBlock(frame.getSyncWord(block), frame.getSignatureNumber(block), frame.getCenterX(block),
+				frame.getCenterY(block), frame.getObjectWidth(block), frame.getObjectHeight(block), frame.getAngle(block)))
+		{
+			held[filtered.getBlockCount() - 1] = isHeld;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * A single frame worth of Pixy object detections, stored as a set of primitive arrays rather than
+ * an array of PixyDetection objects. A frame is created once with a fixed block capacity and then reused
+ * for every frame after that, so filling one in doesn't create any garbage for the RIO to clean up.
+ *
+ * Blocks are stored in the order the Pixy sent them, which is largest to smallest for each frame.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFrame {
+	
+	//The timestamp (in seconds, FPGA time) that this frame was captured at
+	private double timestamp;
+	
+	//The number of blocks currently stored in this frame
+	private int blockCount;
+	
+	//Whether or not this frame was made while the Pixy wasn't sending valid frames
+	private boolean stale;
+	
+	//The sync word for each block, either normal or color code
+	private short[] syncWords;
+	
+	//The signature number for each block
+	private short[] signatureNumbers;
+	
+	//The center X position for each block
+	private short[] centerXs;
+	
+	//The center Y position for each block
+	private short[] centerYs;
+	
+	//The width of each block
+	private short[] objectWidths;
+	
+	//The height of each block
+	private short[] objectHeights;
+	
+	//The angle of each block, only used by color codes
+	private short[] angles;
+	
+	/**
+	 * Creates a new, empty PixyFrame that can hold up to a specific number of blocks
+	 *
+	 * @param capacity The maximum number of blocks this frame can hold
+	 */
+	public PixyFrame(int capacity)
+	{
+		syncWords = new short[capacity];
+		signatureNumbers = new short[capacity];
+		centerXs = new short[capacity];
+		centerYs = new short[capacity];
+		objectWidths = new short[capacity];
+		objectHeights = new short[capacity];
+		angles = new short[capacity];
+		
+		timestamp = 0;
+		blockCount = 0;
+	}
+	
+	/**
+	 * Returns the maximum number of blocks this frame can hold
+	 *
+	 * @return The maximum number of blocks this frame can hold
+	 */
+	public int getCapacity()
+	{
+		return syncWords.length;
+	}
+	
+	/**
+	 * Returns the number of blocks in this frame
+	 *
+	 * @return The number of blocks in this frame
+	 */
+	public int getBlockCount()
+	{
+		return blockCount;
+	}
+	
+	/**
+	 * Returns the timestamp this frame was captured at, in seconds
+	 *
+	 * @return The timestamp this frame was captured at
+	 */
+	public double getTimestamp()
+	{
+		return timestamp;
+	}
+	
+	/**
+	 * Returns whether or not this frame is stale, meaning it was made while the Pixy had stopped sending valid frames and
+	 * the connection to it was being recovered. Stale frames don't have any blocks in them.
+	 *
+	 * @return True if this frame is stale
+	 */
+	public boolean isStale()
+	{
+		return stale;
+	}
+	
+	/**
+	 * Returns the sync word of a block (either 0xAA55 for normal or 0xAA56 for color code)
+	 *
+	 * @param block The index of the block
+	 * @return The sync word of the block
+	 */
+	public short getSyncWord(int block)
+	{
+		return syncWords[block];
+	}
+	
+	/**
+	 * Returns whether or not a block is a color code block
+	 *
+	 * @param block The index of the block
+	 * @return True if the block is a color code, false otherwise
+	 */
+	public boolean isColorCode(int block)
+	{
+		return syncWords[block] == Pixy.CC_SYNC_WORD;
+	}
+	
+	/**
+	 * Returns the signature number of a block
+	 *
+	 * @param block The index of the block
+	 * @return The signature number of the block
+	 */
+	public short getSignatureNumber(int block)
+	{
+		return signatureNumbers[block];
+	}
+	
+	/**
+	 * Returns the center X position of a block
+	 *
+	 * @param block The index of the block
+	 * @return The center X position of the block
+	 */
+	public short getCenterX(int block)
+	{
+		return centerXs[block];
+	}
+	
+	/**
+	 * Returns the center Y position of a block
+	 *
+	 * @param block The index of the block
+	 * @return The center Y position of the block
+	 */
+	public short getCenterY(int block)
+	{
+		return centerYs[block];
+	}
+	
+	/**
+	 * Returns the width of a block
+	 *
+	 * @param block The index of the block
+	 * @return The width of the block
+	 */
+	public short getObjectWidth(int block)
+	{
+		return objectWidths[block];
+	}
+	
+	/**
+	 * Returns the height of a block
+	 *
+	 * @param block The index of the block
+	 * @return The height of the block
+	 */
+	public short getObjectHeight(int block)
+	{
+		return objectHeights[block];
+	}
+	
+	/**
+	 * Returns the angle of a block, this is zero for anything that isn't a color code
+	 *
+	 * @param block The index of the block
+	 * @return The angle of the block
+	 */
+	public short getAngle(int block)
+	{
+		return angles[block];
+	}
+	
+	/**
+	 * Finds the largest block in this frame with a specific signature number
+	 *
+	 * @param signatureNumber The signature number to look for
+	 * @return The index of the largest block with that signature, or -1 if there isn't one
+	 */
+	public int findLargestBlock(short signatureNumber)
+	{
+		int best = -1;
+		int bestArea = -1;
+		
+		for(int i = 0; i < blockCount; i++)
+		{
+			if(signatureNumbers[i] == signatureNumber)
+			{
+				int area = objectWidths[i] * objectHeights[i];
+				
+				if(area > bestArea)
+				{
+					best = i;
+					bestArea = area;
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Creates a PixyDetection object out of one of the blocks in this frame. Note that this creates a new
+	 * object every time it's called, so avoid it in code that runs every loop if you can.
+	 *
+	 * @param block The index of the block
+	 * @return A new PixyDetection representing the block
+	 */
+	public PixyDetection toDetection(int block)
+	{
+		return new PixyDetection(syncWords[block], signatureNumbers[block], centerXs[block],
+				centerYs[block], objectWidths[block], objectHeights[block], angles[block]);
+	}
+	
+	/**
+	 * Copies the contents of another frame into this one. If the other frame has more blocks than this
+	 * one can hold the extra blocks are dropped.
+	 *
+	 * @param other The frame to copy from
+	 */
+	public void copyFrom(PixyFrame other)
+	{
+		int count = Math.min(other.blockCount, getCapacity());
+		
+		System.arraycopy(other.syncWords, 0, syncWords, 0, count);
+		System.arraycopy(other.signatureNumbers, 0, signatureNumbers, 0, count);
+		System.arraycopy(other.centerXs, 0, centerXs, 0, count);
+		System.arraycopy(other.centerYs, 0, centerYs, 0, count);
+		System.arraycopy(other.objectWidths, 0, objectWidths, 0, count);
+		System.arraycopy(other.objectHeights, 0, objectHeights, 0, count);
+		System.arraycopy(other.angles, 0, angles, 0, count);
+		
+		timestamp = other.timestamp;
+		blockCount = count;
+		stale = other.stale;
+	}
+	
+	/**
+	 * Empties this frame and gives it a new timestamp, used when a new frame begins
+	 *
+	 * @param timestamp The timestamp of the new frame
+	 */
+	void clear(double timestamp)
+	{
+		this.timestamp = timestamp;
+		blockCount = 0;
+		stale = false;
+	}
+	
+	/**
+	 * Marks this frame as stale or not
+	 *
+	 * @param stale True if the frame was made while the Pixy wasn't sending valid frames
+	 */
+	void setStale(boolean stale)
+	{
+		this.stale = stale;
+	}
+	
+	/**
+	 * Adds a block to the end of this frame
+	 *
+	 * @return True if the block was added, false if the frame is already full
+	 */
+	boolean addBlock(short syncWord, short signatureNumber, short centerX, short centerY,
+			short objectWidth, short objectHeight, short angle)
+	{
+		//If there's no more room, drop the block
+		if(blockCount >= getCapacity())
+		{
+			return false;
+		}
+		
+		syncWords[blockCount] = syncWord;
+		signatureNumbers[blockCount] = signatureNumber;
+		centerXs[blockCount] = centerX;
+		centerYs[blockCount] = centerY;
+		objectWidths[blockCount] = objectWidth;
+		objectHeights[blockCount] = objectHeight;
+		angles[blockCount] = angle;
+		
+		blockCount++;
+		
+		return true;
+	}
+	
+	/**
+	 * Overwrites a block that is already in this frame
+	 */
+	void setBlock(int block, short syncWord, short signatureNumber, short centerX, short centerY,
+			short objectWidth, short objectHeight, short angle)
+	{
+		syncWords[block] = syncWord;
+		signatureNumbers[block] = signatureNumber;
+		centerXs[block] = centerX;
+		centerYs[block] = centerY;
+		objectWidths[block] = objectWidth;
+		objectHeights[block] = objectHeight;
+		angles[block] = angle;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.zephyr.pixy.PixyFrameFormat.*;
+
+/**
+ * Reads frames written by a PixyFrameEncoder back into PixyFrames. Frames are read one at a time from a ByteBuffer,
+ * and if the buffer ends part way through a frame nothing is read, so a log can be read in chunks.
+ *
+ * Frames that aren't keyframes depend on the frame before them, so if decoding starts part way through a log everything
+ * before the first keyframe is skipped.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFrameDecoder {
+	
+	//The frame being decoded and the one before it, these swap every frame
+	private PixyFrame current;
+	private PixyFrame previous;
+	
+	//The timestamp of the last frame in microseconds
+	private long previousMicros;
+	
+	//Whether or not a keyframe has been seen yet, nothing can be decoded until one has
+	private boolean synced;
+	
+	/**
+	 * Creates a new PixyFrameDecoder
+	 *
+	 * @param maxBlocks The most blocks a frame can have, this has to be at least what the encoder was given
+	 */
+	public PixyFrameDecoder(int maxBlocks)
+	{
+		current = new PixyFrame(maxBlocks);
+		previous = new PixyFrame(maxBlocks);
+		
+		reset();
+	}
+	
+	/**
+	 * Forgets the last frame, so decoding starts over from the next keyframe. Use this when jumping to a different spot in a log.
+	 */
+	public void reset()
+	{
+		synced = false;
+		previous.clear(0);
+	}
+	
+	/**
+	 * Reads the next frame from a buffer
+	 *
+	 * @param in The buffer to read from, starting at its position
+	 * @return The frame that was read, or null if the buffer doesn't hold a whole frame, in which case the position isn't moved.
+	 * The frame is reused, so it's overwritten by the decode after next.
+	 * @throws IllegalArgumentException If the data is corrupt
+	 */
+	public PixyFrame decode(ByteBuffer in)
+	{
+		while(true)
+		{
+			int start = in.position();
+			
+			try
+			{
+				boolean keyframe = decodeFrame(in);
+				
+				//Without a keyframe first there's nothing for changes to be applied to, skip ahead
+				if(!keyframe && !synced)
+				{
+					continue;
+				}
+				
+				synced = true;
+				
+				//The frame we just read is what the next one is compared to
+				PixyFrame decoded = current;
+				current = previous;
+				previous = decoded;
+				
+				return decoded;
+			}
+			catch(BufferUnderflowException e)
+			{
+				//Not a whole frame yet, wait for more data
+				in.position(start);
+				
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Reads a frame into current
+	 *
+	 * @return True if the frame was a keyframe
+	 */
+	private boolean decodeFrame(ByteBuffer in)
+	{
+		long header = getVarLong(in);
+		
+		boolean keyframe = (header & KEYFRAME_FLAG) != 0;
+		boolean stale = (header & STALE_FLAG) != 0;
+		long blockCount = header >>> BLOCK_COUNT_SHIFT;
+		
+		if(blockCount > current.getCapacity())
+		{
+			throw new IllegalArgumentException("Corrupt Pixy frame data, " + blockCount + " blocks is more than " + current.getCapacity());
+		}
+		
+		long micros = getSignedVarLong(in);
+		
+		if(!keyframe)
+		{
+			micros += previousMicros;
+		}
+		
+		current.clear(micros / 1e6);
+		current.setStale(stale);
+		
+		for(int i = 0; i < blockCount; i++)
+		{
+			decodeBlock(i, keyframe, in);
+		}
+		
+		previousMicros = micros;
+		
+		return keyframe;
+	}
+	
+	/**
+	 * Reads a single block into current
+	 */
+	private void decodeBlock(int block, boolean keyframe, ByteBuffer in)
+	{
+		long header = getVarLong(in);
+		
+		int mode = (int) (header & MODE_MASK);
+		boolean colorCode = (header & COLOR_CODE_FLAG) != 0;
+		short signature = (short) (header >>> SIGNATURE_SHIFT);
+		
+		int x, y, width, height;
+		
+		switch(mode)
+		{
+			case MODE_PACKED:
+				long packed = 0;
+				
+				for(int i = 0; i < PACKED_BYTES; i++)
+				{
+					packed |= (long) (in.get() & 0xFF) << (i * 8);
+				}
+				
+				x = (int) (packed & ((1 << X_BITS) - 1));
+				y = (int) ((packed >>> X_BITS) & ((1 << Y_BITS) - 1));
+				width = (int) ((packed >>> (X_BITS + Y_BITS)) & ((1 << WIDTH_BITS) - 1));
+				height = (int) ((packed >>> (X_BITS + Y_BITS + WIDTH_BITS)) & ((1 << HEIGHT_BITS) - 1));
+				break;
+			case MODE_SMALL_DELTA:
+				int first = in.get();
+				int second = in.get();
+				
+				//Shift each nibble to the top of the int and back down to sign extend it
+				x = (first << 28) >> 28;
+				y = (first << 24) >> 28;
+				width = (second << 28) >> 28;
+				height = (second << 24) >> 28;
+				break;
+			default:
+				x = (int) getSignedVarLong(in);
+				y = (int) getSignedVarLong(in);
+				width = (int) getSignedVarLong(in);
+				height = (int) getSignedVarLong(in);
+				break;
+		}
+		
+		int angle = colorCode ? (int) getSignedVarLong(in) : 0;
+		
+		if(mode == MODE_SMALL_DELTA || mode == MODE_DELTA)
+		{
+			//The encoder only uses changes against a matching block from a frame that isn't a keyframe
+			if(keyframe || (synced && (block >= previous.getBlockCount() || previous.getSignatureNumber(block) != signature)))
+			{
+				throw new IllegalArgumentException("Corrupt Pixy frame data, block " + block + " has nothing to change from");
+			}
+			
+			//Before the first keyframe there's nothing to add to, the frame is going to be skipped anyway
+			if(synced)
+			{
+				x += previous.getCenterX(block);
+				y += previous.getCenterY(block);
+				width += previous.getObjectWidth(block);
+				height += previous.getObjectHeight(block);
+				angle += previous.getAngle(block);
+			}
+		}
+		
+		current.addBlock(colorCode ? Pixy.CC_SYNC_WORD : Pixy.NORMAL_SYNC_WORD, signature, (short) x, (short) y,
+				(short) width, (short) height, (short) angle);
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static com.zephyr.pixy.PixyFrameFormat.*;
+
+/**
+ * Turns PixyFrames into a compact binary format for logging and telemetry. Most blocks don't move much from one frame
+ * to the next, so blocks are stored as the change from the same block in the last frame whenever they can be, and as
+ * bit packed values when they can't. A block that didn't move takes three bytes instead of the fourteen the Pixy sends.
+ * See PixyFrameFormat for the details of the format.
+ *
+ * Frames are written one after another into a ByteBuffer that you supply and can reuse, so nothing is created for each frame.
+ * Every so often a keyframe is written that doesn't depend on anything before it, so a PixyFrameDecoder can start reading
+ * part way through a log. For example, to log every frame from a listener:
+ *
+ * ByteBuffer buffer = ByteBuffer.allocate(4096);
+ * PixyFrameEncoder encoder = new PixyFrameEncoder(maxObjects);
+ *
+ * public void onFrame(Pixy pixy, PixyFrame frame)
+ * {
+ *     if(!encoder.encode(frame, buffer))
+ *     {
+ *         //Write the buffer out to a file, clear it, and try again
+ *     }
+ * }
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFrameEncoder {
+	
+	/**
+	 * The default number of frames between keyframes
+	 */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 50;
+	
+	//The last frame that was encoded, blocks are stored as changes from this
+	private PixyFrame previous;
+	
+	//The timestamp of the last frame in microseconds
+	private long previousMicros;
+	
+	//How often to write a keyframe, and the number of frames until the next one
+	private int keyframeInterval;
+	private int framesUntilKeyframe;
+	
+	//The number of frames and bytes written so far
+	private long framesEncoded;
+	private long bytesEncoded;
+	
+	/**
+	 * Creates a new PixyFrameEncoder
+	 *
+	 * @param maxBlocks The most blocks a frame will have, any blocks past this are dropped
+	 */
+	public PixyFrameEncoder(int maxBlocks)
+	{
+		previous = new PixyFrame(maxBlocks);
+		keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+		
+		reset();
+	}
+	
+	/**
+	 * Sets how often a keyframe is written. Keyframes are bigger, but they're where a decoder can start reading from.
+	 *
+	 * @param keyframeInterval The number of frames between keyframes, 1 makes every frame a keyframe
+	 */
+	public void setKeyframeInterval(int keyframeInterval)
+	{
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		
+		framesUntilKeyframe = Math.min(framesUntilKeyframe, this.keyframeInterval);
+	}
+	
+	/**
+	 * Makes the next frame a keyframe, useful when starting a new log file
+	 */
+	public void reset()
+	{
+		framesUntilKeyframe = 0;
+	}
+	
+	/**
+	 * Returns the most bytes encoding a frame can take, a buffer with at least this much room always has space for the frame
+	 *
+	 * @return The most bytes a single encoded frame can take
+	 */
+	public int getMaxEncodedSize()
+	{
+		return maxEncodedSize(previous.getCapacity());
+	}
+	
+	/**
+	 * Returns the number of frames encoded so far
+	 *
+	 * @return The number of frames encoded
+	 */
+	public long getFramesEncoded()
+	{
+		return framesEncoded;
+	}
+	
+	/**
+	 * Returns the number of bytes written so far
+	 *
+	 * @return The number of bytes written
+	 */
+	public long getBytesEncoded()
+	{
+		return bytesEncoded;
+	}
+	
+	/**
+	 * Writes a frame to the end of a buffer
+	 *
+	 * @param frame The frame to write
+	 * @param out The buffer to write to, starting at its position
+	 * @return True if the frame was written, false if there wasn't enough room in the buffer, in which case nothing was written
+	 */
+	public boolean encode(PixyFrame frame, ByteBuffer out)
+	{
+		int start = out.position();
+		
+		try
+		{
+			boolean keyframe = framesUntilKeyframe <= 0;
+			
+			int blockCount = Math.min(frame.getBlockCount(), previous.getCapacity());
+			
+			long micros = Math.round(frame.getTimestamp() * 1e6);
+			
+			putVarLong(out, ((long) blockCount << BLOCK_COUNT_SHIFT) | (keyframe ? KEYFRAME_FLAG : 0) | (frame.isStale() ? STALE_FLAG : 0));
+			putSignedVarLong(out, keyframe ? micros : micros - previousMicros);
+			
+			for(int i = 0; i < blockCount; i++)
+			{
+				encodeBlock(frame, i, !keyframe && i < previous.getBlockCount(), out);
+			}
+			
+			//Only move on once the whole frame made it in
+			previous.copyFrom(frame);
+			previousMicros = micros;
+			
+			framesUntilKeyframe = keyframe ? keyframeInterval - 1 : framesUntilKeyframe - 1;
+			
+			framesEncoded++;
+			bytesEncoded += out.position() - start;
+			
+			return true;
+		}
+		catch(BufferOverflowException e)
+		{
+			//Out of room, undo the partial frame
+			out.position(start);
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes a single block, as a change from the last frame if possible
+	 */
+	private void encodeBlock(PixyFrame frame, int block, boolean hasReference, ByteBuffer out)
+	{
+		short signature = frame.getSignatureNumber(block);
+		boolean colorCode = frame.isColorCode(block);
+		
+		int x = frame.getCenterX(block);
+		int y = frame.getCenterY(block);
+		int width = frame.getObjectWidth(block);
+		int height = frame.getObjectHeight(block);
+		int angle = frame.getAngle(block);
+		
+		//Changes are only useful if the block at the same index last frame looks like the same object
+		boolean delta = hasReference && previous.getSignatureNumber(block) == signature && previous.isColorCode(block) == colorCode;
+		
+		int mode;
+		
+		if(delta)
+		{
+			x -= previous.getCenterX(block);
+			y -= previous.getCenterY(block);
+			width -= previous.getObjectWidth(block);
+			height -= previous.getObjectHeight(block);
+			angle -= previous.getAngle(block);
+			
+			mode = isSmallDelta(x) && isSmallDelta(y) && isSmallDelta(width) && isSmallDelta(height) ? MODE_SMALL_DELTA : MODE_DELTA;
+		}
+		else
+		{
+			mode = canPack(x, y, width, height) ? MODE_PACKED : MODE_RAW;
+		}
+		
+		putVarLong(out, ((long) (signature & 0xFFFF) << SIGNATURE_SHIFT) | (colorCode ? COLOR_CODE_FLAG : 0) | mode);
+		
+		switch(mode)
+		{
+			case MODE_PACKED:
+				long packed = x | (long) y << X_BITS | (long) width << (X_BITS + Y_BITS) | (long) height << (X_BITS + Y_BITS + WIDTH_BITS);
+				
+				for(int i = 0; i < PACKED_BYTES; i++)
+				{
+					out.put((byte) (packed >>> (i * 8)));
+				}
+				break;
+			case MODE_SMALL_DELTA:
+				out.put((byte) ((x & 0xF) | (y & 0xF) << 4));
+				out.put((byte) ((width & 0xF) | (height & 0xF) << 4));
+				break;
+			default:
+				//Both DELTA and RAW are four signed varints, they just mean different things
+				putSignedVarLong(out, x);
+				putSignedVarLong(out, y);
+				putSignedVarLong(out, width);
+				putSignedVarLong(out, height);
+				break;
+		}
+		
+		//Only color codes have an angle
+		if(colorCode)
+		{
+			putSignedVarLong(out, angle);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The constants and variable length integer helpers shared by PixyFrameEncoder and PixyFrameDecoder.
+ *
+ * Every frame starts with a header varint holding the block count shifted left two, with the low bit set if the frame is a keyframe
+ * and the next bit set if the frame is stale (made while the Pixy wasn't sending valid frames).
+ * After that is the timestamp in microseconds as a zig-zag varint, the absolute time for keyframes and the change since the last
+ * frame otherwise. Then comes each block, which starts with a varint holding the signature number shifted left three, a bit for
+ * color codes and two bits saying how the rest of the block is stored:
+ *
+ * PACKED - x (9 bits), y (8 bits), width (9 bits) and height (8 bits) packed into five bytes
+ * SMALL_DELTA - the change in x, y, width and height from the same block in the last frame, four bits each in two bytes
+ * DELTA - the change in x, y, width and height from the same block in the last frame, each as a zig-zag varint
+ * RAW - x, y, width and height each as a zig-zag varint, for values too big to pack
+ *
+ * Color code blocks then have their angle as a zig-zag varint, the change from the last frame for the delta modes.
+ * The delta modes are only used when the last frame had a block with the same signature at the same index, and never in keyframes.
+ *
+ * @author Bradley Bickford
+ *
+ */
+final class PixyFrameFormat {
+	
+	//The ways a block's position and size can be stored
+	static final int MODE_PACKED = 0;
+	static final int MODE_SMALL_DELTA = 1;
+	static final int MODE_DELTA = 2;
+	static final int MODE_RAW = 3;
+	
+	//The bits of the frame header below the block count
+	static final int KEYFRAME_FLAG = 0x1;
+	static final int STALE_FLAG = 0x2;
+	static final int BLOCK_COUNT_SHIFT = 2;
+	
+	//The bits of the block header below the signature number
+	static final int MODE_MASK = 0x3;
+	static final int COLOR_CODE_FLAG = 0x4;
+	static final int SIGNATURE_SHIFT = 3;
+	
+	//The number of bits each value gets when packed, these cover the whole 320x200 image
+	static final int X_BITS = 9;
+	static final int Y_BITS = 8;
+	static final int WIDTH_BITS = 9;
+	static final int HEIGHT_BITS = 8;
+	
+	//The number of bytes a packed block takes up
+	static final int PACKED_BYTES = 5;
+	
+	//The range of a change that fits in four bits
+	static final int SMALL_DELTA_MIN = -8;
+	static final int SMALL_DELTA_MAX = 7;
+	
+	//Only static methods here
+	private PixyFrameFormat()
+	{
+	}
+	
+	/**
+	 * Returns the most bytes a frame with a number of blocks can take up once encoded
+	 *
+	 * @param blockCount The number of blocks in the frame
+	 * @return The most bytes the encoded frame can be
+	 */
+	static int maxEncodedSize(int blockCount)
+	{
+		//Header and timestamp, then for each block a header plus four raw shorts and an angle, none of which is more than three bytes
+		return 5 + 10 + blockCount * (3 + 5 * 3);
+	}
+	
+	/**
+	 * Maps a signed value onto an unsigned one so small negative values stay small, 0, -1, 1, -2, 2 become 0, 1, 2, 3, 4
+	 */
+	static long zigZag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	/**
+	 * Undoes zigZag
+	 */
+	static long unZigZag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Writes an unsigned value seven bits at a time, lowest bits first, with the top bit of each byte set if there's more to come
+	 */
+	static void putVarLong(ByteBuffer out, long value)
+	{
+		while((value & ~0x7FL) != 0)
+		{
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		
+		out.put((byte) value);
+	}
+	
+	/**
+	 * Reads a value written by putVarLong
+	 *
+	 * @throws IllegalArgumentException If the value is longer than a long can hold, which only happens with corrupt data
+	 */
+	static long getVarLong(ByteBuffer in)
+	{
+		long value = 0;
+		
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.get();
+			
+			value |= (long) (b & 0x7F) << shift;
+			
+			if(b >= 0)
+			{
+				return value;
+			}
+		}
+		
+		throw new IllegalArgumentException("Corrupt Pixy frame data, varint is too long");
+	}
+	
+	/**
+	 * Writes a signed value as a zig-zag varint
+	 */
+	static void putSignedVarLong(ByteBuffer out, long value)
+	{
+		putVarLong(out, zigZag(value));
+	}
+	
+	/**
+	 * Reads a value written by putSignedVarLong
+	 */
+	static long getSignedVarLong(ByteBuffer in)
+	{
+		return unZigZag(getVarLong(in));
+	}
+	
+	/**
+	 * Returns whether or not a block's position and size fit in the packed format
+	 */
+	static boolean canPack(int x, int y, int width, int height)
+	{
+		return (x >>> X_BITS) == 0 && (y >>> Y_BITS) == 0 && (width >>> WIDTH_BITS) == 0 && (height >>> HEIGHT_BITS) == 0;
+	}
+	
+	/**
+	 * Returns whether or not a change fits in four bits
+	 */
+	static boolean isSmallDelta(int delta)
+	{
+		return delta >= SMALL_DELTA_MIN && delta <= SMALL_DELTA_MAX;
+	}
+}
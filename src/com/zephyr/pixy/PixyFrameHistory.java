@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * A fixed size history of the most recent frames received from a Pixy, ordered by the time each frame was captured.
+ * This is mostly useful for sensor fusion, where you need to know where a target was "as of" the time a gyro or encoder
+ * reading was taken rather than where it is right now.
+ *
+ * Every frame in the history is allocated up front and reused, so once it's created recording a frame doesn't create
+ * any garbage. When the history is full the oldest frame is overwritten.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFrameHistory {
+	
+	//The frames themselves, used as a ring buffer
+	private PixyFrame[] frames;
+	
+	//The capture timestamp of each frame, kept separately so the binary search doesn't have to jump between objects
+	private double[] timestamps;
+	
+	//The physical index of the oldest frame in the ring buffer
+	private int head;
+	
+	//The number of frames currently stored
+	private int size;
+	
+	/**
+	 * Creates a new, empty PixyFrameHistory
+	 *
+	 * @param capacity The number of frames to keep, at least 1
+	 * @param maxBlocksPerFrame The maximum number of blocks stored for each frame
+	 */
+	public PixyFrameHistory(int capacity, int maxBlocksPerFrame)
+	{
+		if(capacity < 1)
+		{
+			throw new IllegalArgumentException("A frame history has to hold at least 1 frame");
+		}
+		
+		frames = new PixyFrame[capacity];
+		timestamps = new double[capacity];
+		
+		//Allocate every frame now so we never have to later
+		for(int i = 0; i < capacity; i++)
+		{
+			frames[i] = new PixyFrame(maxBlocksPerFrame);
+		}
+		
+		head = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Returns the maximum number of frames this history can hold
+	 *
+	 * @return The maximum number of frames this history can hold
+	 */
+	public int getCapacity()
+	{
+		return frames.length;
+	}
+	
+	/**
+	 * Returns the number of frames currently stored
+	 *
+	 * @return The number of frames currently stored
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Removes every frame from the history
+	 */
+	public void clear()
+	{
+		head = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Copies a frame into the history, overwriting the oldest frame if the history is full. Frames have to be
+	 * recorded in the order they were captured, a frame that is older than the newest frame already stored is ignored.
+	 *
+	 * @param frame The frame to record
+	 * @return True if the frame was recorded, false if it was out of order
+	 */
+	public boolean record(PixyFrame frame)
+	{
+		//Keep the timestamps sorted, otherwise the binary search falls apart
+		if(size > 0 && frame.getTimestamp() < timestamps[physicalIndex(size - 1)])
+		{
+			return false;
+		}
+		
+		int slot;
+		
+		if(size < frames.length)
+		{
+			//There's still room, just add it to the end
+			slot = physicalIndex(size);
+			size++;
+		}
+		else
+		{
+			//Otherwise overwrite the oldest frame and move the head forward
+			slot = head;
+			head = (head + 1) % frames.length;
+		}
+		
+		frames[slot].copyFrom(frame);
+		timestamps[slot] = frame.getTimestamp();
+		
+		return true;
+	}
+	
+	/**
+	 * Returns a frame from the history, where 0 is the oldest frame and size() - 1 is the newest. The frame returned is
+	 * owned by the history and will be overwritten eventually, copy it if you need to keep it around.
+	 *
+	 * @param index The index of the frame, 0 being the oldest
+	 * @return The frame at that index, or null if the index is out of range
+	 */
+	public PixyFrame getFrame(int index)
+	{
+		if(index < 0 || index >= size)
+		{
+			return null;
+		}
+		
+		return frames[physicalIndex(index)];
+	}
+	
+	/**
+	 * Returns the most recent frame in the history
+	 *
+	 * @return The newest frame, or null if the history is empty
+	 */
+	public PixyFrame getNewestFrame()
+	{
+		return getFrame(size - 1);
+	}
+	
+	/**
+	 * Finds the newest frame that was captured at or before a specific time using a binary search
+	 *
+	 * @param timestamp The time to look up, in seconds
+	 * @return The index of the frame (0 being the oldest), or -1 if every frame is newer than the timestamp
+	 */
+	public int indexAtOrBefore(double timestamp)
+	{
+		int low = 0;
+		int high = size - 1;
+		int found = -1;
+		
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			
+			if(timestamps[physicalIndex(mid)] <= timestamp)
+			{
+				//This one works, but there may be a newer one that also works
+				found = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		
+		return found;
+	}
+	
+	/**
+	 * Returns the newest frame that was captured at or before a specific time
+	 *
+	 * @param timestamp The time to look up, in seconds
+	 * @return The frame, or null if there isn't one that old
+	 */
+	public PixyFrame getFrameAt(double timestamp)
+	{
+		int index = indexAtOrBefore(timestamp);
+		
+		return index < 0 ? null : frames[physicalIndex(index)];
+	}
+	
+	/**
+	 * Estimates where the largest block of a specific signature was at a specific time, by linearly interpolating between the
+	 * frames captured just before and just after that time. If the time is newer than the newest frame, the newest frame is used
+	 * as is (no extrapolation). The target has to be visible in both of the frames around the timestamp for this to work.
+	 *
+	 * The result is written into out as { centerX, centerY, width, height } so that no array has to be created.
+	 *
+	 * @param signatureNumber The signature number of the block to track
+	 * @param timestamp The time to estimate the position at, in seconds
+	 * @param out An array of at least 4 values that the result is written into
+	 * @return True if a position was found, false if the target wasn't visible or the time is older than the history
+	 */
+	public boolean interpolatePosition(short signatureNumber, double timestamp, double[] out)
+	{
+		int before = indexAtOrBefore(timestamp);
+		
+		//Older than anything we have, nothing we can do
+		if(before < 0)
+		{
+			return false;
+		}
+		
+		PixyFrame first = frames[physicalIndex(before)];
+		int firstBlock = first.findLargestBlock(signatureNumber);
+		
+		if(firstBlock < 0)
+		{
+			return false;
+		}
+		
+		//If this is the newest frame or an exact match, there's nothing to interpolate between
+		if(before == size - 1 || timestamps[physicalIndex(before)] == timestamp)
+		{
+			out[0] = first.getCenterX(firstBlock);
+			out[1] = first.getCenterY(firstBlock);
+			out[2] = first.getObjectWidth(firstBlock);
+			out[3] = first.getObjectHeight(firstBlock);
+			
+			return true;
+		}
+		
+		PixyFrame second = frames[physicalIndex(before + 1)];
+		int secondBlock = second.findLargestBlock(signatureNumber);
+		
+		if(secondBlock < 0)
+		{
+			return false;
+		}
+		
+		//How far between the two frames the timestamp is, from 0 to 1
+		double fraction = (timestamp - first.getTimestamp()) / (second.getTimestamp() - first.getTimestamp());
+		
+		out[0] = lerp(first.getCenterX(firstBlock), second.getCenterX(secondBlock), fraction);
+		out[1] = lerp(first.getCenterY(firstBlock), second.getCenterY(secondBlock), fraction);
+		out[2] = lerp(first.getObjectWidth(firstBlock), second.getObjectWidth(secondBlock), fraction);
+		out[3] = lerp(first.getObjectHeight(firstBlock), second.getObjectHeight(secondBlock), fraction);
+		
+		return true;
+	}
+	
+	/**
+	 * Converts a logical index (0 being the oldest frame) into an index in the ring buffer
+	 */
+	private int physicalIndex(int index)
+	{
+		return (head + index) % frames.length;
+	}
+	
+	/**
+	 * Linearly interpolates between two values
+	 */
+	private static double lerp(double start, double end, double fraction)
+	{
+		return start + (end - start) * fraction;
+	}
+}
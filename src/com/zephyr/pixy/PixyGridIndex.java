@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * Indexes the blocks of a frame by where they are in the image, so questions like "which block is closest to the crosshair"
+ * or "which blocks are inside this rectangle" only have to look at blocks near the spot being asked about instead of
+ * every block in the frame.
+ *
+ * The image is split into a grid of square cells. After every frame, each block is put in the cell its center falls in
+ * with a counting sort: count the blocks in each cell, turn the counts into where each cell starts, then drop every block
+ * into place. All of the arrays are created once up front, so building the index every frame doesn't create any garbage.
+ *
+ * The index keeps its own copy of the frame it was built from, and every query returns block indexes into that copy, which
+ * is available from getFrame(). The copy is rebuilt in place every frame though, so if frames are being read in the background
+ * with startAcquisition, the next frame can replace it between a query and reading the blocks it found. Synchronize on the index
+ * around the query and everything read from getFrame() to keep that from happening, like this:
+ *
+ * synchronized(index)
+ * {
+ *     int block = index.findNearest(x, y);
+ *     
+ *     if(block >= 0)
+ *     {
+ *         targetX = index.getFrame().getCenterX(block);
+ *     }
+ * }
+ *
+ * The next frame waits until you let go, so keep it short, and don't call into the Pixy while holding the index.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyGridIndex {
+	
+	/**
+	 * The default width and height of each cell, in pixels
+	 */
+	public static final int DEFAULT_CELL_SIZE = 20;
+	
+	/**
+	 * Passed as a signature number to match blocks of any signature
+	 */
+	public static final short ANY_SIGNATURE = 0;
+	
+	//The width and height of each cell, and the number of cells across and down the image
+	private int cellSize;
+	private int columns;
+	private int rows;
+	
+	//The frame the index was built from
+	private PixyFrame frame;
+	
+	//Where each cell's blocks start in cellBlocks, cell c's blocks are cellBlocks[cellStart[c]] up to cellBlocks[cellStart[c + 1]]
+	private int[] cellStart;
+	
+	//The block indexes, grouped by cell, along with a copy of each block's center and signature in the same order so a
+	//query stepping through a cell reads straight down the arrays
+	private int[] cellBlocks;
+	private short[] cellXs;
+	private short[] cellYs;
+	private short[] cellSignatures;
+	
+	//The cell each block is in, only used while building
+	private int[] blockCells;
+	
+	/**
+	 * Creates a new PixyGridIndex with the default cell size
+	 *
+	 * @param capacity The most blocks a frame can have, usually the Pixy's maxAllowedObjects
+	 */
+	public PixyGridIndex(int capacity)
+	{
+		this(DEFAULT_CELL_SIZE, capacity);
+	}
+	
+	/**
+	 * Creates a new PixyGridIndex. Cells about the size of a typical block work best, smaller cells mean fewer blocks to look
+	 * at in each cell but more cells to step through.
+	 *
+	 * @param cellSize The width and height of each cell, in pixels
+	 * @param capacity The most blocks a frame can have, usually the Pixy's maxAllowedObjects
+	 */
+	public PixyGridIndex(int cellSize, int capacity)
+	{
+		if(cellSize < 1)
+		{
+			throw new IllegalArgumentException("The cell size has to be at least 1 pixel");
+		}
+		
+		this.cellSize = cellSize;
+		
+		columns = (Pixy.FRAME_WIDTH + cellSize - 1) / cellSize;
+		rows = (Pixy.FRAME_HEIGHT + cellSize - 1) / cellSize;
+		
+		frame = new PixyFrame(capacity);
+		cellStart = new int[columns * rows + 1];
+		cellBlocks = new int[capacity];
+		cellXs = new short[capacity];
+		cellYs = new short[capacity];
+		cellSignatures = new short[capacity];
+		blockCells = new int[capacity];
+	}
+	
+	/**
+	 * Rebuilds the index from a new frame. This is called for you after every frame if the index was turned on with
+	 * Pixy.enableGridIndex.
+	 *
+	 * @param source The frame that was just parsed
+	 */
+	public synchronized void update(PixyFrame source)
+	{
+		frame.copyFrom(source);
+		
+		int cells = columns * rows;
+		int blocks = frame.getBlockCount();
+		
+		for(int cell = 0; cell <= cells; cell++)
+		{
+			cellStart[cell] = 0;
+		}
+		
+		//Count the blocks in each cell, offset by one so the running total below comes out as each cell's start
+		for(int i = 0; i < blocks; i++)
+		{
+			blockCells[i] = row(frame.getCenterY(i)) * columns + column(frame.getCenterX(i));
+			cellStart[blockCells[i] + 1]++;
+		}
+		
+		for(int cell = 0; cell < cells; cell++)
+		{
+			cellStart[cell + 1] += cellStart[cell];
+		}
+		
+		//Drop each block into place, using the start of the next cell as a cursor and then shifting back to fix it afterwards
+		for(int i = 0; i < blocks; i++)
+		{
+			int k = cellStart[blockCells[i]]++;
+			
+			cellBlocks[k] = i;
+			cellXs[k] = frame.getCenterX(i);
+			cellYs[k] = frame.getCenterY(i);
+			cellSignatures[k] = frame.getSignatureNumber(i);
+		}
+		
+		for(int cell = cells; cell > 0; cell--)
+		{
+			cellStart[cell] = cellStart[cell - 1];
+		}
+		
+		cellStart[0] = 0;
+	}
+	
+	/**
+	 * Returns the frame the index was built from, every block index returned by the queries is an index into this frame. The
+	 * frame is rebuilt in place every frame, so synchronize on the index around the query and reading the frame if frames are
+	 * being read in the background.
+	 *
+	 * @return The indexed frame
+	 */
+	public PixyFrame getFrame()
+	{
+		return frame;
+	}
+	
+	/**
+	 * Returns the width and height of each cell
+	 *
+	 * @return The cell size, in pixels
+	 */
+	public int getCellSize()
+	{
+		return cellSize;
+	}
+	
+	/**
+	 * Finds the block whose center is closest to a point
+	 *
+	 * @param x The X position of the point
+	 * @param y The Y position of the point
+	 * @return The index of the closest block, or -1 if the frame is empty
+	 */
+	public int findNearest(int x, int y)
+	{
+		return findNearest(x, y, ANY_SIGNATURE);
+	}
+	
+	/**
+	 * Finds the block with a specific signature whose center is closest to a point. The cells are searched in rings around
+	 * the point, stopping as soon as nothing in the next ring could be closer than what's already been found.
+	 *
+	 * @param x The X position of the point
+	 * @param y The Y position of the point
+	 * @param signatureNumber The signature number to look for, or ANY_SIGNATURE for any of them
+	 * @return The index of the closest block, or -1 if there isn't one
+	 */
+	public synchronized int findNearest(int x, int y, short signatureNumber)
+	{
+		int centerColumn = column(x);
+		int centerRow = row(y);
+		
+		//Past this many rings every cell has been searched
+		int maxRing = Math.max(Math.max(centerColumn, columns - 1 - centerColumn), Math.max(centerRow, rows - 1 - centerRow));
+		
+		int best = -1;
+		long bestDistance = Long.MAX_VALUE;
+		
+		for(int ring = 0; ring <= maxRing; ring++)
+		{
+			//Every block outside of the rings searched so far is at least as far from the point as the nearest edge of
+			//those rings that still has cells past it, so if the best one found is closer than that nothing left can beat it
+			if(best != -1 && ring > 0)
+			{
+				long reach = Long.MAX_VALUE;
+				
+				if(centerColumn - ring >= 0)
+				{
+					reach = Math.min(reach, x - (centerColumn - ring + 1) * cellSize);
+				}
+				
+				if(centerColumn + ring < columns)
+				{
+					reach = Math.min(reach, (centerColumn + ring) * cellSize - x);
+				}
+				
+				if(centerRow - ring >= 0)
+				{
+					reach = Math.min(reach, y - (centerRow - ring + 1) * cellSize);
+				}
+				
+				if(centerRow + ring < rows)
+				{
+					reach = Math.min(reach, (centerRow + ring) * cellSize - y);
+				}
+				
+				if(bestDistance < reach * reach)
+				{
+					break;
+				}
+			}
+			
+			int top = centerRow - ring;
+			int bottom = centerRow + ring;
+			int left = centerColumn - ring;
+			int right = centerColumn + ring;
+			
+			for(int row = Math.max(top, 0); row <= Math.min(bottom, rows - 1); row++)
+			{
+				//The top and bottom of the ring are whole rows, in between only the two ends are part of it
+				int step = row == top || row == bottom ? 1 : Math.max(right - left, 1);
+				
+				for(int column = left; column <= right; column += step)
+				{
+					if(column < 0 || column >= columns)
+					{
+						continue;
+					}
+					
+					int cell = row * columns + column;
+					
+					for(int k = cellStart[cell]; k < cellStart[cell + 1]; k++)
+					{
+						if(signatureNumber != ANY_SIGNATURE && cellSignatures[k] != signatureNumber)
+						{
+							continue;
+						}
+						
+						int block = cellBlocks[k];
+						long distance = distanceSquared(k, x, y);
+						
+						//Ties go to the earlier (larger) block, the same as a scan through the frame would pick
+						if(distance < bestDistance || (distance == bestDistance && block < best))
+						{
+							best = block;
+							bestDistance = distance;
+						}
+					}
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Finds every block whose center is within a distance of a point
+	 *
+	 * @param x The X position of the point
+	 * @param y The Y position of the point
+	 * @param radius The distance, in pixels
+	 * @param out The array the block indexes are written into, if there are more blocks than fit the rest are left out
+	 * @return The number of block indexes written into out
+	 */
+	public synchronized int findWithinRadius(int x, int y, double radius, int[] out)
+	{
+		if(radius < 0)
+		{
+			return 0;
+		}
+		
+		double radiusSquared = radius * radius;
+		
+		//The rows and columns the circle covers. This is worked out as a double and clamped to the image before it's turned
+		//back into a position, so a huge radius can't overflow and wrap around to search only the edge of the image.
+		int firstRow = row(clampToImage(y - radius, Pixy.FRAME_HEIGHT));
+		int lastRow = row(clampToImage(y + radius, Pixy.FRAME_HEIGHT));
+		int firstColumn = column(clampToImage(x - radius, Pixy.FRAME_WIDTH));
+		int lastColumn = column(clampToImage(x + radius, Pixy.FRAME_WIDTH));
+		
+		int count = 0;
+		
+		for(int row = firstRow; row <= lastRow; row++)
+		{
+			for(int column = firstColumn; column <= lastColumn; column++)
+			{
+				int cell = row * columns + column;
+				
+				for(int k = cellStart[cell]; k < cellStart[cell + 1] && count < out.length; k++)
+				{
+					if(distanceSquared(k, x, y) <= radiusSquared)
+					{
+						out[count++] = cellBlocks[k];
+					}
+				}
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Finds every block whose center is inside a rectangle, edges included
+	 *
+	 * @param left The smallest X position
+	 * @param top The smallest Y position
+	 * @param right The largest X position
+	 * @param bottom The largest Y position
+	 * @param out The array the block indexes are written into, if there are more blocks than fit the rest are left out
+	 * @return The number of block indexes written into out
+	 */
+	public synchronized int findInRectangle(int left, int top, int right, int bottom, int[] out)
+	{
+		if(right < left || bottom < top)
+		{
+			return 0;
+		}
+		
+		int count = 0;
+		
+		for(int row = row(top); row <= row(bottom); row++)
+		{
+			for(int column = column(left); column <= column(right); column++)
+			{
+				int cell = row * columns + column;
+				
+				for(int k = cellStart[cell]; k < cellStart[cell + 1] && count < out.length; k++)
+				{
+					if(cellXs[k] >= left && cellXs[k] <= right && cellYs[k] >= top && cellYs[k] <= bottom)
+					{
+						out[count++] = cellBlocks[k];
+					}
+				}
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns the column an X position falls in, positions off the edge of the image go in the edge column
+	 */
+	private int column(int x)
+	{
+		return Math.min(Math.max(x, 0) / cellSize, columns - 1);
+	}
+	
+	/**
+	 * Returns the row a Y position falls in, positions off the edge of the image go in the edge row
+	 */
+	private int row(int y)
+	{
+		return Math.min(Math.max(y, 0) / cellSize, rows - 1);
+	}
+	
+	/**
+	 * Clamps a position to the image and rounds it down (blocks are only ever at whole positions, so that never leaves one out), so it
+	 * can be turned into a row or column without overflowing
+	 */
+	private static int clampToImage(double position, int size)
+	{
+		return (int) Math.max(0, Math.min(position, size));
+	}
+	
+	/**
+	 * Returns the square of the distance from the center of the block at position k in cellBlocks to a point
+	 */
+	private long distanceSquared(int k, int x, int y)
+	{
+		long dx = cellXs[k] - x;
+		long dy = cellYs[k] - y;
+		
+		return dx * dx + dy * dy;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * Receives notifications from a Pixy as new data comes in, rather than having to poll for it. Every method has
+ * an empty default implementation, so you only need to override the ones you care about.
+ *
+ * Listeners are called from whatever the Pixy's listener executor runs on, which by default is the thread that read
+ * the frame, after the Pixy has been unlocked. Keep them short, a slow listener on the default executor holds up the next frame.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public interface PixyListener {
+	
+	/**
+	 * Called when a new frame has been read. If frames come in faster than they can be handed out,
+	 * only the most recent one is delivered.
+	 *
+	 * @param pixy The Pixy the frame came from
+	 * @param frame The frame, this is reused for the next notification so copy it if you need to keep it
+	 */
+	public default void onFrame(Pixy pixy, PixyFrame frame)
+	{
+	}
+	
+	/**
+	 * Called when a signature has been seen for enough frames in a row to count as acquired
+	 *
+	 * @param pixy The Pixy the signature was seen by
+	 * @param signatureNumber The signature number that was acquired
+	 */
+	public default void onSignatureSeen(Pixy pixy, short signatureNumber)
+	{
+	}
+	
+	/**
+	 * Called when a signature that was acquired has been missing for enough frames in a row to count as lost
+	 *
+	 * @param pixy The Pixy the signature was lost by
+	 * @param signatureNumber The signature number that was lost
+	 */
+	public default void onSignatureLost(Pixy pixy, short signatureNumber)
+	{
+	}
+}
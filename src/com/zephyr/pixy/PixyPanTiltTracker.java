@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * Keeps a target centered in the Pixy's view using the pan/tilt servo mount. Give one of these to Pixy.setPanTiltTracker and
+ * it runs right after every frame is parsed, so the servos are moved as soon as new data shows up instead of waiting for the next
+ * robot loop.
+ *
+ * Each axis has its own PID controller working on how far the largest block of the target signature is from the center of the image.
+ * The output of the controller is how far to move the servo this frame, which is limited by the slew limit so the mount doesn't jerk
+ * around, and the servo position is kept inside its range (0 to 1000 unless you narrow it).
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyPanTiltTracker {
+	
+	/**
+	 * The lowest position the servos can be sent to
+	 */
+	public static final int SERVO_MIN = 0;
+	
+	/**
+	 * The highest position the servos can be sent to
+	 */
+	public static final int SERVO_MAX = 1000;
+	
+	/**
+	 * The position of the servos when they're centered
+	 */
+	public static final int SERVO_CENTER = 500;
+	
+	//The signature to follow
+	private short targetSignature;
+	
+	//The PID gains for each axis, in servo units per pixel of error
+	private double panP, panI, panD;
+	private double tiltP, tiltI, tiltD;
+	
+	//The most each servo is allowed to move in one frame
+	private int slewLimit;
+	
+	//The range each servo is allowed to move in
+	private int panMin, panMax;
+	private int tiltMin, tiltMax;
+	
+	//The PID state for each axis
+	private double panIntegral, tiltIntegral;
+	private double lastPanError, lastTiltError;
+	private boolean hasLastError;
+	
+	//Where the servos are now
+	private int pan;
+	private int tilt;
+	
+	//Whether or not a reset position still has to be sent to the servos
+	private boolean resetPending;
+	
+	/**
+	 * Creates a new PixyPanTiltTracker with only proportional gains, no slew limit and the full servo range.
+	 * The servos start centered.
+	 *
+	 * @param targetSignature The signature number to follow
+	 * @param panP The proportional gain for pan
+	 * @param tiltP The proportional gain for tilt
+	 */
+	public PixyPanTiltTracker(short targetSignature, double panP, double tiltP)
+	{
+		this.targetSignature = targetSignature;
+		
+		setPanGains(panP, 0, 0);
+		setTiltGains(tiltP, 0, 0);
+		
+		slewLimit = SERVO_MAX - SERVO_MIN;
+		
+		setPanRange(SERVO_MIN, SERVO_MAX);
+		setTiltRange(SERVO_MIN, SERVO_MAX);
+		
+		reset(SERVO_CENTER, SERVO_CENTER);
+	}
+	
+	/**
+	 * Returns the signature number being followed
+	 *
+	 * @return The signature number being followed
+	 */
+	public short getTargetSignature()
+	{
+		return targetSignature;
+	}
+	
+	/**
+	 * Changes the signature number to follow
+	 *
+	 * @param targetSignature The signature number to follow
+	 */
+	public synchronized void setTargetSignature(short targetSignature)
+	{
+		if(targetSignature != this.targetSignature)
+		{
+			this.targetSignature = targetSignature;
+			
+			//The old target's error history means nothing for the new one
+			clearControllerState();
+		}
+	}
+	
+	/**
+	 * Sets the PID gains for pan, in servo units per pixel of horizontal error. A negative proportional gain reverses the direction.
+	 *
+	 * @param p The proportional gain
+	 * @param i The integral gain
+	 * @param d The derivative gain
+	 */
+	public synchronized void setPanGains(double p, double i, double d)
+	{
+		panP = p;
+		panI = i;
+		panD = d;
+	}
+	
+	/**
+	 * Sets the PID gains for tilt, in servo units per pixel of vertical error. A negative proportional gain reverses the direction.
+	 *
+	 * @param p The proportional gain
+	 * @param i The integral gain
+	 * @param d The derivative gain
+	 */
+	public synchronized void setTiltGains(double p, double i, double d)
+	{
+		tiltP = p;
+		tiltI = i;
+		tiltD = d;
+	}
+	
+	/**
+	 * Sets the most either servo is allowed to move in a single frame
+	 *
+	 * @param slewLimit The slew limit in servo units per frame
+	 */
+	public synchronized void setSlewLimit(int slewLimit)
+	{
+		this.slewLimit = Math.max(0, slewLimit);
+	}
+	
+	/**
+	 * Limits the range the pan servo is allowed to move in, useful if the mount hits something at the ends of its travel
+	 *
+	 * @param min The lowest pan position, no lower than 0
+	 * @param max The highest pan position, no higher than 1000
+	 */
+	public synchronized void setPanRange(int min, int max)
+	{
+		panMin = clamp(min, SERVO_MIN, SERVO_MAX);
+		panMax = clamp(max, panMin, SERVO_MAX);
+		pan = clamp(pan, panMin, panMax);
+	}
+	
+	/**
+	 * Limits the range the tilt servo is allowed to move in
+	 *
+	 * @param min The lowest tilt position, no lower than 0
+	 * @param max The highest tilt position, no higher than 1000
+	 */
+	public synchronized void setTiltRange(int min, int max)
+	{
+		tiltMin = clamp(min, SERVO_MIN, SERVO_MAX);
+		tiltMax = clamp(max, tiltMin, SERVO_MAX);
+		tilt = clamp(tilt, tiltMin, tiltMax);
+	}
+	
+	/**
+	 * Moves the servos to a known position and clears out the controllers. The servos are actually moved
+	 * the next time the target is seen.
+	 *
+	 * @param pan The pan position
+	 * @param tilt The tilt position
+	 */
+	public synchronized void reset(int pan, int tilt)
+	{
+		this.pan = clamp(pan, panMin, panMax);
+		this.tilt = clamp(tilt, tiltMin, tiltMax);
+		
+		clearControllerState();
+		
+		//Make sure the next update sends this position even if the controllers don't move from it
+		resetPending = true;
+	}
+	
+	/**
+	 * Returns where the pan servo currently is
+	 *
+	 * @return The pan position
+	 */
+	public synchronized int getPan()
+	{
+		return pan;
+	}
+	
+	/**
+	 * Returns where the tilt servo currently is
+	 *
+	 * @return The tilt position
+	 */
+	public synchronized int getTilt()
+	{
+		return tilt;
+	}
+	
+	/**
+	 * Runs both controllers on a new frame. If the target isn't in the frame the servos stay where they are.
+	 *
+	 * @param frame The frame that was just parsed
+	 * @return True if the servos need to be moved, which is always the case the first time the target is seen after a reset
+	 */
+	public synchronized boolean update(PixyFrame frame)
+	{
+		int block = frame.findLargestBlock(targetSignature);
+		
+		//Nothing to follow, hold still and start fresh once the target shows back up
+		if(block < 0)
+		{
+			clearControllerState();
+			return false;
+		}
+		
+		//Positive pan error means the target is left of center, positive tilt error means it's below center
+		double panError = Pixy.FRAME_WIDTH / 2 - frame.getCenterX(block);
+		double tiltError = frame.getCenterY(block) - Pixy.FRAME_HEIGHT / 2;
+		
+		panIntegral += panError;
+		tiltIntegral += tiltError;
+		
+		//The derivative doesn't mean anything on the first frame
+		double panDerivative = hasLastError ? panError - lastPanError : 0;
+		double tiltDerivative = hasLastError ? tiltError - lastTiltError : 0;
+		
+		lastPanError = panError;
+		lastTiltError = tiltError;
+		hasLastError = true;
+		
+		int panStep = (int) Math.round(panP * panError + panI * panIntegral + panD * panDerivative);
+		int tiltStep = (int) Math.round(tiltP * tiltError + tiltI * tiltIntegral + tiltD * tiltDerivative);
+		
+		int newPan = clamp(pan + clamp(panStep, -slewLimit, slewLimit), panMin, panMax);
+		int newTilt = clamp(tilt + clamp(tiltStep, -slewLimit, slewLimit), tiltMin, tiltMax);
+		
+		//If a servo is pinned at the end of its range, don't let the integral keep winding up
+		if(newPan == pan && panStep != 0)
+		{
+			panIntegral -= panError;
+		}
+		
+		if(newTilt == tilt && tiltStep != 0)
+		{
+			tiltIntegral -= tiltError;
+		}
+		
+		boolean moved = newPan != pan || newTilt != tilt || resetPending;
+		
+		resetPending = false;
+		
+		pan = newPan;
+		tilt = newTilt;
+		
+		return moved;
+	}
+	
+	/**
+	 * Clears the integral and derivative history of both controllers
+	 */
+	private void clearControllerState()
+	{
+		panIntegral = 0;
+		tiltIntegral = 0;
+		lastPanError = 0;
+		lastTiltError = 0;
+		hasLastError = false;
+	}
+	
+	/**
+	 * Keeps a value between a minimum and a maximum
+	 */
+	private static int clamp(int value, int min, int max)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the distance to targets from two Pixys mounted side by side, pointing the same way, a known distance apart.
+ * This is a lot steadier than estimating distance from the width of a block, which jumps around as the edges of the block flicker.
+ *
+ * Every update, the newest frame from the left Pixy is paired with the frame from the right Pixy that was captured closest to
+ * it in time. Blocks are matched across the two frames by signature, and since the cameras are level with each other the same
+ * target shows up on about the same row in both. To avoid comparing every block against every other block, the blocks of both
+ * frames are sorted by signature and row and swept through together. Each matched target then gets a range and bearing from
+ * how far apart it is horizontally in the two images.
+ *
+ * The matching is greedy, not the best pairing overall. Left blocks are taken in order of row, and each one takes the unused right
+ * block that looks most like it. With several targets of the same signature close together, an early left block can take the
+ * right block a later one needed, and that later one goes unmatched or gets a worse partner. Keep the row tolerance tight if
+ * you have targets like that.
+ *
+ * A frame's timestamp is when the Pixy's frame was read, not when the camera took it. The Pixy sends a frame every 20ms, so two
+ * frames of the same moment can be read up to one frame period apart, which is why the default skew is one frame period. Both
+ * Pixys have to be read (with getAllDetectedObjects or acquireFrame) at least once every robot loop, since update only looks at
+ * frames that have already been read. Otherwise the timestamps stop saying much about when the frames were taken.
+ *
+ * Range is in whatever units the baseline was given in, measured from the point halfway between the cameras. Bearing is in degrees,
+ * positive to the right. All of the results are stored in arrays that are created once, so updating doesn't create any garbage.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyStereo {
+	
+	/**
+	 * The Pixy's horizontal field of view, in degrees
+	 */
+	public static final double PIXY_HORIZONTAL_FOV = 75;
+	
+	/**
+	 * The default most the capture times of the two frames can be apart before they aren't paired, in seconds, one frame period
+	 */
+	public static final double DEFAULT_MAX_TIME_SKEW = 0.02;
+	
+	/**
+	 * The default most the rows of a matched target can be apart, in pixels
+	 */
+	public static final int DEFAULT_ROW_TOLERANCE = 6;
+	
+	/**
+	 * The number of frames of history turned on for each Pixy if it doesn't already have a history
+	 */
+	public static final int DEFAULT_HISTORY_FRAMES = 10;
+	
+	//The two cameras, left and right as seen from behind them
+	private Pixy left;
+	private Pixy right;
+	
+	//The distance between the cameras
+	private double baseline;
+	
+	//The focal length in pixels, worked out from the field of view
+	private double focalLength;
+	
+	//The matching limits
+	private double maxTimeSkew;
+	private int rowTolerance;
+	
+	//Copies of the paired frames, so the Pixys can keep reading while we work
+	private PixyFrame leftFrame;
+	private PixyFrame rightFrame;
+	
+	//The timestamp of the last left frame that was paired, so the same one isn't done twice
+	private double lastLeftTimestamp;
+	
+	//Each block packed into a sort key of signature, row and block index
+	private long[] leftKeys;
+	private long[] rightKeys;
+	
+	//Whether or not each block in the right frame has already been matched
+	private boolean[] rightUsed;
+	
+	//The results for each matched target
+	private int matchCount;
+	private short[] signatures;
+	private int[] leftBlocks;
+	private int[] rightBlocks;
+	private double[] ranges;
+	private double[] bearings;
+	
+	/**
+	 * Creates a new PixyStereo with the default field of view and matching limits
+	 *
+	 * @param left The Pixy on the left, as seen from behind the cameras
+	 * @param right The Pixy on the right
+	 * @param baseline The distance between the centers of the two cameras' lenses, in whatever units you want the range in
+	 */
+	public PixyStereo(Pixy left, Pixy right, double baseline)
+	{
+		this(left, right, baseline, PIXY_HORIZONTAL_FOV, DEFAULT_MAX_TIME_SKEW, DEFAULT_ROW_TOLERANCE);
+	}
+	
+	/**
+	 * Creates a new PixyStereo. Both Pixys need a frame history to pair frames by time, if either one doesn't have one,
+	 * a history of DEFAULT_HISTORY_FRAMES frames is turned on for it.
+	 *
+	 * @param left The Pixy on the left, as seen from behind the cameras
+	 * @param right The Pixy on the right
+	 * @param baseline The distance between the centers of the two cameras' lenses, in whatever units you want the range in
+	 * @param horizontalFov The horizontal field of view of the cameras, in degrees
+	 * @param maxTimeSkew The most the capture times of the two frames can be apart before they aren't paired, in seconds
+	 * @param rowTolerance The most the rows of a matched target can be apart, in pixels
+	 */
+	public PixyStereo(Pixy left, Pixy right, double baseline, double horizontalFov, double maxTimeSkew, int rowTolerance)
+	{
+		this.left = left;
+		this.right = right;
+		this.baseline = baseline;
+		this.maxTimeSkew = maxTimeSkew;
+		this.rowTolerance = rowTolerance;
+		
+		focalLength = (Pixy.FRAME_WIDTH / 2.0) / Math.tan(Math.toRadians(horizontalFov / 2));
+		
+		if(left.getFrameHistory() == null)
+		{
+			left.enableFrameHistory(DEFAULT_HISTORY_FRAMES);
+		}
+		
+		if(right.getFrameHistory() == null)
+		{
+			right.enableFrameHistory(DEFAULT_HISTORY_FRAMES);
+		}
+		
+		leftFrame = new PixyFrame(left.getLatestFrame().getCapacity());
+		rightFrame = new PixyFrame(right.getLatestFrame().getCapacity());
+		
+		leftKeys = new long[leftFrame.getCapacity()];
+		rightKeys = new long[rightFrame.getCapacity()];
+		rightUsed = new boolean[rightFrame.getCapacity()];
+		
+		int maxMatches = Math.min(leftFrame.getCapacity(), rightFrame.getCapacity());
+		
+		signatures = new short[maxMatches];
+		leftBlocks = new int[maxMatches];
+		rightBlocks = new int[maxMatches];
+		ranges = new double[maxMatches];
+		bearings = new double[maxMatches];
+		
+		lastLeftTimestamp = Double.NaN;
+		matchCount = 0;
+	}
+	
+	/**
+	 * Pairs the newest left frame with the closest right frame in time and works out the range and bearing to every
+	 * target in both. Call this every loop, it only does anything when there's a new left frame.
+	 *
+	 * @return True if a new pair of frames was matched, false if there wasn't a new left frame or no right frame was close enough in time.
+	 * When this returns false because the frames were too far apart, the results are cleared.
+	 */
+	public synchronized boolean update()
+	{
+		//Grab the newest left frame, locking the Pixy so it isn't overwritten while we copy it
+		synchronized(left)
+		{
+			PixyFrame newest = left.getFrameHistory().getNewestFrame();
+			
+			if(newest == null || newest.getTimestamp() == lastLeftTimestamp)
+			{
+				return false;
+			}
+			
+			leftFrame.copyFrom(newest);
+		}
+		
+		lastLeftTimestamp = leftFrame.getTimestamp();
+		
+		if(!copyClosestRightFrame(leftFrame.getTimestamp()))
+		{
+			matchCount = 0;
+			return false;
+		}
+		
+		match();
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the number of targets matched in the last update
+	 *
+	 * @return The number of matched targets
+	 */
+	public synchronized int getMatchCount()
+	{
+		return matchCount;
+	}
+	
+	/**
+	 * Returns the signature number of a matched target
+	 *
+	 * @param match The index of the match, from 0 to getMatchCount() - 1
+	 * @return The signature number
+	 */
+	public synchronized short getSignatureNumber(int match)
+	{
+		return signatures[match];
+	}
+	
+	/**
+	 * Returns the distance to a matched target from the point halfway between the cameras
+	 *
+	 * @param match The index of the match, from 0 to getMatchCount() - 1
+	 * @return The range, in the same units as the baseline
+	 */
+	public synchronized double getRange(int match)
+	{
+		return ranges[match];
+	}
+	
+	/**
+	 * Returns the direction of a matched target from the point halfway between the cameras
+	 *
+	 * @param match The index of the match, from 0 to getMatchCount() - 1
+	 * @return The bearing in degrees, 0 being straight ahead and positive to the right
+	 */
+	public synchronized double getBearing(int match)
+	{
+		return bearings[match];
+	}
+	
+	/**
+	 * Returns the index of a matched target's block in the left frame
+	 *
+	 * @param match The index of the match, from 0 to getMatchCount() - 1
+	 * @return The block's index in getLeftFrame()
+	 */
+	public synchronized int getLeftBlock(int match)
+	{
+		return leftBlocks[match];
+	}
+	
+	/**
+	 * Returns the index of a matched target's block in the right frame
+	 *
+	 * @param match The index of the match, from 0 to getMatchCount() - 1
+	 * @return The block's index in getRightFrame()
+	 */
+	public synchronized int getRightBlock(int match)
+	{
+		return rightBlocks[match];
+	}
+	
+	/**
+	 * Returns the closest match of a specific signature, useful when there's only one target you care about
+	 *
+	 * @param signatureNumber The signature number to look for
+	 * @return The index of the match, or -1 if that signature wasn't matched
+	 */
+	public synchronized int findClosestMatch(short signatureNumber)
+	{
+		int closest = -1;
+		
+		for(int i = 0; i < matchCount; i++)
+		{
+			if(signatures[i] == signatureNumber && (closest < 0 || ranges[i] < ranges[closest]))
+			{
+				closest = i;
+			}
+		}
+		
+		return closest;
+	}
+	
+	/**
+	 * Returns the copy of the left frame that was matched in the last update
+	 *
+	 * @return The left frame
+	 */
+	public PixyFrame getLeftFrame()
+	{
+		return leftFrame;
+	}
+	
+	/**
+	 * Returns the copy of the right frame that was matched in the last update
+	 *
+	 * @return The right frame
+	 */
+	public PixyFrame getRightFrame()
+	{
+		return rightFrame;
+	}
+	
+	/**
+	 * Finds the right frame captured closest in time to the left frame and copies it
+	 *
+	 * @return True if there was one within the time skew
+	 */
+	private boolean copyClosestRightFrame(double timestamp)
+	{
+		synchronized(right)
+		{
+			PixyFrameHistory history = right.getFrameHistory();
+			
+			//The closest frame is either the newest one at or before the timestamp or the one right after it
+			int before = history.indexAtOrBefore(timestamp);
+			int best = -1;
+			double bestSkew = Double.POSITIVE_INFINITY;
+			
+			for(int index = Math.max(before, 0); index <= before + 1 && index < history.size(); index++)
+			{
+				double skew = Math.abs(history.getFrame(index).getTimestamp() - timestamp);
+				
+				if(skew < bestSkew)
+				{
+					best = index;
+					bestSkew = skew;
+				}
+			}
+			
+			if(best < 0 || bestSkew > maxTimeSkew)
+			{
+				return false;
+			}
+			
+			rightFrame.copyFrom(history.getFrame(best));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Matches the blocks of the two frames and triangulates every match
+	 */
+	private void match()
+	{
+		int leftCount = sortKeys(leftFrame, leftKeys);
+		int rightCount = sortKeys(rightFrame, rightKeys);
+		
+		Arrays.fill(rightUsed, 0, rightCount, false);
+		matchCount = 0;
+		
+		//Where the right blocks that could match the current left block start, this only moves forward since both are sorted
+		int start = 0;
+		
+		for(int l = 0; l < leftCount && matchCount < signatures.length; l++)
+		{
+			int leftBlock = blockOf(leftKeys[l]);
+			
+			short signature = leftFrame.getSignatureNumber(leftBlock);
+			int leftY = leftFrame.getCenterY(leftBlock);
+			
+			//Skip right blocks that are a lower signature, or the same signature but too far above this one to ever match
+			while(start < rightCount && rightKeys[start] < key(signature, leftY - rowTolerance, 0))
+			{
+				start++;
+			}
+			
+			int best = -1;
+			int bestScore = Integer.MAX_VALUE;
+			
+			//Look at every right block of the same signature that's close enough in row
+			for(int r = start; r < rightCount && rightKeys[r] < key(signature, leftY + rowTolerance + 1, 0); r++)
+			{
+				int rightBlock = blockOf(rightKeys[r]);
+				
+				if(rightUsed[rightBlock])
+				{
+					continue;
+				}
+				
+				//A target always shows up further right in the left camera's image than in the right camera's,
+				//if it doesn't this can't be the same target
+				if(leftFrame.getCenterX(leftBlock) <= rightFrame.getCenterX(rightBlock))
+				{
+					continue;
+				}
+				
+				//The best match is the one closest in row and size
+				int score = Math.abs(leftY - rightFrame.getCenterY(rightBlock))
+						+ Math.abs(leftFrame.getObjectWidth(leftBlock) - rightFrame.getObjectWidth(rightBlock))
+						+ Math.abs(leftFrame.getObjectHeight(leftBlock) - rightFrame.getObjectHeight(rightBlock));
+				
+				if(score < bestScore)
+				{
+					best = rightBlock;
+					bestScore = score;
+				}
+			}
+			
+			if(best >= 0)
+			{
+				rightUsed[best] = true;
+				triangulate(signature, leftBlock, best);
+			}
+		}
+	}
+	
+	/**
+	 * Works out the range and bearing of a matched target and adds it to the results
+	 */
+	private void triangulate(short signature, int leftBlock, int rightBlock)
+	{
+		//Horizontal positions relative to the center of each image
+		double leftX = leftFrame.getCenterX(leftBlock) - Pixy.FRAME_WIDTH / 2.0;
+		double rightX = rightFrame.getCenterX(rightBlock) - Pixy.FRAME_WIDTH / 2.0;
+		
+		//How far the target moved between the two images, the closer it is the bigger this is
+		double disparity = leftX - rightX;
+		
+		//Distance straight out from the cameras, and sideways from the point halfway between them
+		double depth = focalLength * baseline / disparity;
+		double lateral = depth * (leftX + rightX) / (2 * focalLength);
+		
+		signatures[matchCount] = signature;
+		leftBlocks[matchCount] = leftBlock;
+		rightBlocks[matchCount] = rightBlock;
+		ranges[matchCount] = Math.sqrt(depth * depth + lateral * lateral);
+		bearings[matchCount] = Math.toDegrees(Math.atan2(lateral, depth));
+		
+		matchCount++;
+	}
+	
+	/**
+	 * Fills in the sort key of every block in a frame and sorts them
+	 *
+	 * @return The number of keys
+	 */
+	private static int sortKeys(PixyFrame frame, long[] keys)
+	{
+		int count = frame.getBlockCount();
+		
+		for(int block = 0; block < count; block++)
+		{
+			keys[block] = key(frame.getSignatureNumber(block), frame.getCenterY(block), block);
+		}
+		
+		Arrays.sort(keys, 0, count);
+		
+		return count;
+	}
+	
+	/**
+	 * Packs a signature, row and block index into a key that sorts by signature, then row, then block
+	 */
+	private static long key(short signature, int y, int block)
+	{
+		//Offset the row so negative ones still sort in order, and keep it in range for the rows the tolerance pushes past the edge
+		long row = Math.max(0, Math.min(0xFFFFF, y + 0x80000));
+		
+		return (long) (signature & 0xFFFF) << 44 | row << 24 | block;
+	}
+	
+	/**
+	 * Gets the block index back out of a key
+	 */
+	private static int blockOf(long key)
+	{
+		return (int) (key & 0xFFFFFF);
+	}
+}
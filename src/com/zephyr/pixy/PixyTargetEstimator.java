@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * Estimates where each signature's target is between frames. By the time a control loop reads a frame it's already at least
+ * one frame old, and the Pixy only sends 50 frames a second, so a loop running faster than that keeps acting on the same old
+ * position. This keeps an alpha-beta filter (a constant velocity tracker) for the largest block of every signature, updated with
+ * every frame that's parsed, and can predict where the target is at any time, like right now.
+ *
+ * Each filter tracks the center X, center Y, width and height of the block along with how fast each one is changing. When a new
+ * frame comes in, the filter predicts where the block should be, then moves the estimate part of the way toward where it actually
+ * is (alpha) and adjusts the velocity by part of the error (beta). Higher gains follow the target more closely, lower gains smooth
+ * out more noise.
+ *
+ * If a signature hasn't been seen for longer than the coast time, its filter stops predicting and starts over the next time it's seen,
+ * and its slot is given back so a signature that only shows up now and then doesn't use up the table.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyTargetEstimator {
+	
+	/**
+	 * The default position gain
+	 */
+	public static final double DEFAULT_ALPHA = 0.5;
+	
+	/**
+	 * The default velocity gain
+	 */
+	public static final double DEFAULT_BETA = 0.1;
+	
+	/**
+	 * The default longest a target is predicted for after it was last seen, in seconds
+	 */
+	public static final double DEFAULT_MAX_COAST = 0.25;
+	
+	//The number of values tracked for each signature, center X, center Y, width and height
+	private static final int VALUES = 4;
+	
+	//The filter gains
+	private double alpha;
+	private double beta;
+	
+	//The longest a target is predicted for after it was last seen
+	private double maxCoast;
+	
+	//Gives each signature a slot in the arrays below
+	private SignatureTable signatures;
+	
+	//The estimated values and how fast they're changing for each slot, VALUES entries per slot
+	private double[] estimates;
+	private double[] velocities;
+	
+	//When each slot was last updated, and whether or not it's tracking anything
+	private double[] lastUpdateTimes;
+	private boolean[] tracking;
+	
+	//The largest block of each slot in the frame being processed, and whether or not the slot is in that frame
+	private int[] frameBlocks;
+	private boolean[] inFrame;
+	
+	/**
+	 * Creates a new PixyTargetEstimator with the default gains and coast time
+	 */
+	public PixyTargetEstimator()
+	{
+		alpha = DEFAULT_ALPHA;
+		beta = DEFAULT_BETA;
+		maxCoast = DEFAULT_MAX_COAST;
+		
+		signatures = new SignatureTable(SignatureTable.DEFAULT_CAPACITY);
+		
+		int slots = signatures.getCapacity();
+		
+		estimates = new double[slots * VALUES];
+		velocities = new double[slots * VALUES];
+		lastUpdateTimes = new double[slots];
+		tracking = new boolean[slots];
+		frameBlocks = new int[slots];
+		inFrame = new boolean[slots];
+	}
+	
+	/**
+	 * Sets the filter gains. Alpha is how much of the position error is corrected each frame and beta is how much of it
+	 * goes into the velocity, both have to be between 0 and 1 for the filter to settle down, and lower beta is smoother.
+	 *
+	 * @param alpha The position gain
+	 * @param beta The velocity gain
+	 */
+	public synchronized void setGains(double alpha, double beta)
+	{
+		this.alpha = alpha;
+		this.beta = beta;
+	}
+	
+	/**
+	 * Sets the longest a target keeps being predicted after it was last seen
+	 *
+	 * @param maxCoast The coast time in seconds
+	 */
+	public synchronized void setMaxCoast(double maxCoast)
+	{
+		this.maxCoast = Math.max(0, maxCoast);
+	}
+	
+	/**
+	 * Updates the filters with a new frame. This is called for you after every frame if the estimator was turned on with
+	 * Pixy.enableTargetEstimator.
+	 *
+	 * @param frame The frame that was just parsed
+	 */
+	public synchronized void update(PixyFrame frame)
+	{
+		//Find the largest block of each signature in the frame
+		for(int i = 0; i < frame.getBlockCount(); i++)
+		{
+			int slot = signatures.findOrAdd(frame.getSignatureNumber(i));
+			
+			//If the table is full we just can't track this one
+			if(slot < 0)
+			{
+				continue;
+			}
+			
+			if(!inFrame[slot] || area(frame, i) > area(frame, frameBlocks[slot]))
+			{
+				inFrame[slot] = true;
+				frameBlocks[slot] = i;
+			}
+		}
+		
+		double timestamp = frame.getTimestamp();
+		
+		for(int slot = 0; slot < signatures.size(); slot++)
+		{
+			if(!inFrame[slot])
+			{
+				//Past the coast time the filter would start over anyway, so there's nothing worth keeping the slot for
+				if(signatures.isUsed(slot) && timestamp - lastUpdateTimes[slot] > maxCoast)
+				{
+					signatures.free(slot);
+					tracking[slot] = false;
+				}
+				
+				continue;
+			}
+			
+			inFrame[slot] = false;
+			
+			int block = frameBlocks[slot];
+			int base = slot * VALUES;
+			double dt = timestamp - lastUpdateTimes[slot];
+			
+			//Start over if it's new, has been gone too long, or the time went backwards
+			if(!tracking[slot] || dt > maxCoast || dt <= 0)
+			{
+				estimates[base] = frame.getCenterX(block);
+				estimates[base + 1] = frame.getCenterY(block);
+				estimates[base + 2] = frame.getObjectWidth(block);
+				estimates[base + 3] = frame.getObjectHeight(block);
+				
+				for(int value = 0; value < VALUES; value++)
+				{
+					velocities[base + value] = 0;
+				}
+				
+				tracking[slot] = true;
+			}
+			else
+			{
+				correct(base, frame.getCenterX(block), dt);
+				correct(base + 1, frame.getCenterY(block), dt);
+				correct(base + 2, frame.getObjectWidth(block), dt);
+				correct(base + 3, frame.getObjectHeight(block), dt);
+			}
+			
+			lastUpdateTimes[slot] = timestamp;
+		}
+	}
+	
+	/**
+	 * Predicts where the largest block of a signature is at a specific time. The result is written into out as
+	 * { centerX, centerY, width, height } so that no array has to be created.
+	 *
+	 * @param signatureNumber The signature number of the target
+	 * @param timestamp The time to predict for, in seconds (FPGA time, like Timer.getFPGATimestamp())
+	 * @param out An array of at least 4 values that the prediction is written into
+	 * @return True if there was a prediction, false if the signature isn't being tracked or was last seen longer than the coast time before the timestamp
+	 */
+	public synchronized boolean predict(short signatureNumber, double timestamp, double[] out)
+	{
+		int slot = signatures.find(signatureNumber);
+		
+		if(slot < 0 || !tracking[slot])
+		{
+			return false;
+		}
+		
+		double dt = timestamp - lastUpdateTimes[slot];
+		
+		if(dt > maxCoast)
+		{
+			return false;
+		}
+		
+		int base = slot * VALUES;
+		
+		for(int value = 0; value < VALUES; value++)
+		{
+			out[value] = estimates[base + value] + velocities[base + value] * dt;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns how fast a signature's target is moving across the image
+	 *
+	 * @param signatureNumber The signature number of the target
+	 * @return The horizontal velocity in pixels per second, or 0 if the signature isn't being tracked
+	 */
+	public synchronized double getVelocityX(short signatureNumber)
+	{
+		int slot = signatures.find(signatureNumber);
+		
+		return slot >= 0 && tracking[slot] ? velocities[slot * VALUES] : 0;
+	}
+	
+	/**
+	 * Returns how fast a signature's target is moving up or down the image
+	 *
+	 * @param signatureNumber The signature number of the target
+	 * @return The vertical velocity in pixels per second, or 0 if the signature isn't being tracked
+	 */
+	public synchronized double getVelocityY(short signatureNumber)
+	{
+		int slot = signatures.find(signatureNumber);
+		
+		return slot >= 0 && tracking[slot] ? velocities[slot * VALUES + 1] : 0;
+	}
+	
+	/**
+	 * Stops tracking every signature
+	 */
+	public synchronized void reset()
+	{
+		for(int slot = 0; slot < tracking.length; slot++)
+		{
+			tracking[slot] = false;
+			inFrame[slot] = false;
+		}
+		
+		signatures.clear();
+	}
+	
+	/**
+	 * Runs one alpha-beta step on a single value
+	 */
+	private void correct(int index, double measured, double dt)
+	{
+		double predicted = estimates[index] + velocities[index] * dt;
+		double error = measured - predicted;
+		
+		estimates[index] = predicted + alpha * error;
+		velocities[index] += beta * error / dt;
+	}
+	
+	/**
+	 * Returns the area of a block
+	 */
+	private static int area(PixyFrame frame, int block)
+	{
+		return frame.getObjectWidth(block) * frame.getObjectHeight(block);
+	}
+}
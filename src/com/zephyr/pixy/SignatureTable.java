@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+/**
+ * A small, fixed size table that gives each signature number its own slot, so that per signature state
+ * can be kept in plain arrays indexed by slot. Normal signatures only go from 1 to 7, but color codes can be
+ * just about any number, so slots are handed out as new signatures show up. Whatever owns the table frees a slot once its
+ * signature has been gone long enough that there's nothing worth remembering about it, so a stray signature that got through
+ * the checksum doesn't hold a slot forever. If the table does fill up, new signatures are ignored until a slot is freed, and
+ * that's reported in the RIOlog.
+ *
+ * @author Bradley Bickford
+ *
+ */
+class SignatureTable {
+	
+	//The default number of signatures tracked at once
+	static final int DEFAULT_CAPACITY = 64;
+	
+	//The signature number assigned to each slot
+	private short[] signatures;
+	
+	//Whether or not each slot has a signature in it
+	private boolean[] used;
+	
+	//The number of slots that have ever been handed out, every used slot is below this
+	private int size;
+	
+	//Whether or not the table being full has already been reported, so it isn't reported every frame
+	private boolean fullReported;
+	
+	/**
+	 * Creates a new, empty SignatureTable
+	 *
+	 * @param capacity The maximum number of signatures the table can hold
+	 */
+	SignatureTable(int capacity)
+	{
+		signatures = new short[capacity];
+		used = new boolean[capacity];
+		size = 0;
+	}
+	
+	/**
+	 * Returns the maximum number of signatures the table can hold
+	 */
+	int getCapacity()
+	{
+		return signatures.length;
+	}
+	
+	/**
+	 * Returns the number of slots that have ever been handed out, every slot in use is below this but some of the
+	 * ones below it might have been freed
+	 */
+	int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Returns whether or not a slot has a signature in it
+	 */
+	boolean isUsed(int slot)
+	{
+		return used[slot];
+	}
+	
+	/**
+	 * Returns the signature number assigned to a slot
+	 */
+	short getSignature(int slot)
+	{
+		return signatures[slot];
+	}
+	
+	/**
+	 * Finds the slot of a signature
+	 *
+	 * @return The slot, or -1 if the signature doesn't have one
+	 */
+	int find(short signatureNumber)
+	{
+		for(int i = 0; i < size; i++)
+		{
+			if(used[i] && signatures[i] == signatureNumber)
+			{
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Finds the slot of a signature, giving it a new one if it doesn't have one yet
+	 *
+	 * @return The slot, or -1 if the signature doesn't have one and the table is full
+	 */
+	int findOrAdd(short signatureNumber)
+	{
+		int slot = find(signatureNumber);
+		
+		if(slot >= 0)
+		{
+			return slot;
+		}
+		
+		//Reuse a freed slot if there is one, otherwise hand out a new one
+		for(int i = 0; i < size; i++)
+		{
+			if(!used[i])
+			{
+				return assign(i, signatureNumber);
+			}
+		}
+		
+		if(size < signatures.length)
+		{
+			return assign(size++, signatureNumber);
+		}
+		
+		if(!fullReported)
+		{
+			System.out.println("PIXY SIGNATURE TABLE FULL, IGNORING SIG#" + signatureNumber + "!");
+			fullReported = true;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Frees a slot so it can be handed out to another signature
+	 */
+	void free(int slot)
+	{
+		used[slot] = false;
+		fullReported = false;
+	}
+	
+	/**
+	 * Removes every signature from the table
+	 */
+	void clear()
+	{
+		for(int i = 0; i < size; i++)
+		{
+			used[i] = false;
+		}
+		
+		size = 0;
+		fullReported = false;
+	}
+	
+	/**
+	 * Puts a signature in a slot
+	 */
+	private int assign(int slot, short signatureNumber)
+	{
+		signatures[slot] = signatureNumber;
+		used[slot] = true;
+		
+		return slot;
+	}
+}
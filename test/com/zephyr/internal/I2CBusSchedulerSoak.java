@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A multi-threaded soak test for I2CBusScheduler. Several threads for each of a few devices hammer the scheduler with short
+ * transactions while another thread keeps changing priorities and budgets, with a budget period only a few transactions long
+ * so it rolls over all the time. It checks that only one transaction ever runs at once and that the bus never stalls, which
+ * is what happens if a wakeup gets lost and every thread ends up waiting on a bus nobody holds.
+ *
+ * It doesn't need a RIO, run it from a desktop with:
+ *
+ * java com.zephyr.internal.I2CBusSchedulerSoak [seconds to run] [seed]
+ *
+ * If the bus stalls, what every thread was doing is printed. The exit code is 0 if everything passed and 1 if anything failed.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class I2CBusSchedulerSoak {
+	
+	//How long to run if no time is given, in seconds
+	private static final double DEFAULT_DURATION = 10;
+	
+	//The longest the bus can go without a transaction finishing before it counts as stalled, in nanoseconds
+	private static final long STALL_LIMIT = 1000000000L;
+	
+	//The length of a budget period, short enough that it rolls over between almost every transaction
+	private static final double PERIOD = 0.00003;
+	
+	//How long each transaction holds the bus, in nanoseconds
+	private static final long TRANSACTION_NANOS = 8000;
+	
+	//The number of threads making transactions for each device
+	private static final int THREADS_PER_DEVICE = 2;
+	
+	//The scheduler under test, and the devices on it
+	private I2CBusScheduler scheduler;
+	private int[] devices;
+	
+	//How many transactions are running right now, which should never be more than 1
+	private AtomicInteger running;
+	
+	//The total number of transactions finished, and the number finished for each device
+	private AtomicLong finished;
+	private AtomicLong[] finishedByDevice;
+	
+	//Set when it's time for everything to stop
+	private volatile boolean stopping;
+	
+	//Set when something has failed
+	private volatile boolean failed;
+	
+	/**
+	 * Runs the soak test
+	 *
+	 * @param args The number of seconds to run for, and the seed to start from, both optional
+	 */
+	public static void main(String[] args)
+	{
+		double duration = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_DURATION;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		
+		boolean passed = new I2CBusSchedulerSoak().run(duration, seed);
+		
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * Creates a new I2CBusSchedulerSoak, with one high priority device on a tight budget and two unbudgeted ones sharing a lower priority
+	 */
+	public I2CBusSchedulerSoak()
+	{
+		scheduler = new I2CBusScheduler();
+		scheduler.setPeriod(PERIOD);
+		
+		devices = new int[] {
+			scheduler.register("pixy", 10, 0.000005),
+			scheduler.register("gyro", 0, I2CBusScheduler.UNLIMITED_BUDGET),
+			scheduler.register("color sensor", 0, I2CBusScheduler.UNLIMITED_BUDGET)
+		};
+		
+		running = new AtomicInteger();
+		finished = new AtomicLong();
+		finishedByDevice = new AtomicLong[devices.length];
+		
+		for(int i = 0; i < devices.length; i++)
+		{
+			finishedByDevice[i] = new AtomicLong();
+		}
+	}
+	
+	/**
+	 * Runs the test
+	 *
+	 * @param duration How long to run for, in seconds
+	 * @param seed The seed for the priority and budget changes
+	 * @return True if everything passed
+	 */
+	public boolean run(double duration, long seed)
+	{
+		System.out.println("I2C BUS SCHEDULER SOAK: " + duration + "s from seed " + seed);
+		
+		Thread[] workers = new Thread[devices.length * THREADS_PER_DEVICE];
+		
+		for(int i = 0; i < workers.length; i++)
+		{
+			int device = devices[i % devices.length];
+			
+			workers[i] = new Thread(() -> work(device), "I2C soak " + scheduler.getName(device) + " " + i / devices.length);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		
+		Thread tuner = new Thread(() -> tune(seed), "I2C soak tuner");
+		tuner.setDaemon(true);
+		tuner.start();
+		
+		long end = System.nanoTime() + (long) (duration * 1e9);
+		long lastFinished = -1;
+		long lastProgress = System.nanoTime();
+		
+		//Watch for the bus stalling
+		while(!failed && System.nanoTime() < end)
+		{
+			sleep(50);
+			
+			long now = System.nanoTime();
+			long count = finished.get();
+			
+			if(count != lastFinished)
+			{
+				lastFinished = count;
+				lastProgress = now;
+			}
+			else if(now - lastProgress > STALL_LIMIT)
+			{
+				System.out.println("  FAILED: no transaction finished for " + STALL_LIMIT / 1000000 + "ms");
+				
+				for(Thread worker : workers)
+				{
+					System.out.println("    " + worker.getName() + " is " + worker.getState());
+				}
+				
+				failed = true;
+			}
+		}
+		
+		stopping = true;
+		
+		System.out.println("  " + finished.get() + " transactions");
+		
+		for(int i = 0; i < devices.length; i++)
+		{
+			System.out.println("    " + scheduler.getName(devices[i]) + ": " + finishedByDevice[i].get() + " transactions, longest wait "
+					+ String.format("%.2f", scheduler.getMaxWaitTime(devices[i]) * 1000) + "ms");
+		}
+		
+		System.out.println(failed ? "I2C BUS SCHEDULER SOAK FAILED" : "I2C BUS SCHEDULER SOAK PASSED");
+		
+		return !failed;
+	}
+	
+	/**
+	 * Makes transactions for a device until it's time to stop
+	 */
+	private void work(int device)
+	{
+		while(!stopping && !failed)
+		{
+			scheduler.transaction(device, () -> {
+				if(running.incrementAndGet() != 1)
+				{
+					System.out.println("  FAILED: two transactions ran at once");
+					failed = true;
+				}
+				
+				//Hold the bus for a bit, the way a real transfer would
+				long end = System.nanoTime() + TRANSACTION_NANOS;
+				
+				while(System.nanoTime() < end)
+				{
+				}
+				
+				running.decrementAndGet();
+				
+				return false;
+			});
+			
+			finished.incrementAndGet();
+			finishedByDevice[device].incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Keeps changing priorities and budgets until it's time to stop, so the choice of who goes next keeps changing underneath the waiters
+	 */
+	private void tune(long seed)
+	{
+		Random random = new Random(seed);
+		
+		while(!stopping && !failed)
+		{
+			int device = devices[random.nextInt(devices.length)];
+			
+			if(random.nextBoolean())
+			{
+				scheduler.setPriority(device, random.nextInt(11));
+			}
+			else
+			{
+				scheduler.setBudget(device, random.nextInt(4) == 0 ? I2CBusScheduler.UNLIMITED_BUDGET : random.nextInt(20) * 1e-6);
+			}
+			
+			sleep(1);
+		}
+	}
+	
+	/**
+	 * Sleeps without having to deal with being interrupted
+	 */
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
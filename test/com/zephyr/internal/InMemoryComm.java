@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fake communication device that reads from a byte array instead of real hardware, used to drive the Pixy
+ * parser without a Pixy attached. Words are read little endian like I2C and UART. Once the data runs out, reads
+ * return null the same way SerialPortComm does when its receive buffer is empty.
+ *
+ * Anything written is counted and thrown away.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class InMemoryComm implements CommMiddleMan{
+	
+	//The bytes being read from
+	private byte[] data;
+	
+	//The next byte to read
+	private int position;
+	
+	//One past the last byte that can be read
+	private int limit;
+	
+	//The number of bytes that have been written
+	private long bytesWritten;
+	
+	//Puts the bytes together into words
+	private WordDecoder decoder;
+	
+	/**
+	 * Creates a new InMemoryComm with nothing to read
+	 */
+	public InMemoryComm()
+	{
+		decoder = new WordDecoder(ByteOrder.LITTLE_ENDIAN);
+		
+		load(new byte[0], 0);
+	}
+	
+	/**
+	 * Replaces whatever is left to read with new data. The array is used directly, not copied.
+	 *
+	 * @param data The bytes to read from
+	 * @param length The number of bytes in the array to use
+	 */
+	public void load(byte[] data, int length)
+	{
+		this.data = data;
+		
+		position = 0;
+		limit = length;
+	}
+	
+	/**
+	 * Returns the number of bytes that haven't been read yet
+	 *
+	 * @return The number of bytes left
+	 */
+	public int remaining()
+	{
+		return limit - position;
+	}
+	
+	/**
+	 * Returns the number of bytes that have been written
+	 *
+	 * @return The number of bytes written
+	 */
+	public long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int available() {
+		return remaining();
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public Byte readByte() {
+		//If there isn't a byte left, return null
+		if(remaining() < 1)
+		{
+			return null;
+		}
+		
+		return data[position++];
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public Short readShort() {
+		//If there aren't two bytes left, return null
+		if(remaining() < 2)
+		{
+			return null;
+		}
+		
+		short retVal = decoder.toWord(data[position], data[position + 1]);
+		
+		position += 2;
+		
+		return retVal;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readWords(short[] words, int offset, int count) {
+		//Only read as many whole words as are left
+		count = Math.min(count, remaining() / 2);
+		
+		decoder.decode(data, position, words, offset, count);
+		
+		position += count * 2;
+		
+		return count;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void write(byte[] bytes) {
+		bytesWritten += bytes.length;
+	}
+	
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void write(ByteBuffer buffer) {
+		bytesWritten += buffer.capacity();
+	}
+	
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks that PixyFrameEncoder and PixyFrameDecoder round trip frames exactly, and measures how small and how fast the
+ * encoding is compared to what the Pixy sends and to logging PixyDetection.toString() for every block.
+ *
+ * The frames are made up of a handful of objects drifting around the image the way real targets do, with some color codes,
+ * objects coming and going, and the odd block with values too big to pack. It doesn't need a RIO or a Pixy, run it from a desktop with:
+ *
+ * java com.zephyr.pixy.PixyFrameCodecBenchmark [frames] [seed]
+ *
+ * The exit code is 0 if every frame came back exactly the same and 1 if any didn't.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyFrameCodecBenchmark {
+	
+	//How many frames to use if no number is given, about 45 minutes of frames at 50 per second
+	private static final int DEFAULT_FRAMES = 135000;
+	
+	//The maximum number of blocks in a frame
+	private static final int MAX_BLOCKS = 20;
+	
+	//The number of objects moving around, not all of them are visible at once
+	private static final int OBJECTS = 8;
+	
+	//How many times each timing is repeated, the best run is reported so the JIT has a chance to warm up
+	private static final int RUNS = 5;
+	
+	//The frames being encoded
+	private PixyFrame[] frames;
+	
+	//Where each object is, how fast it's moving and whether or not it's visible
+	private double[] xs, ys, dxs, dys;
+	private int[] sizes;
+	private boolean[] visible;
+	
+	//The order objects are added to a frame, sorted largest first like the Pixy does
+	private int[] order;
+	
+	private Random random;
+	
+	//Where the timing results end up, so the JIT can't throw the work away
+	private static volatile long sink;
+	
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args The number of frames to use, and the seed to generate them from, both optional
+	 */
+	public static void main(String[] args)
+	{
+		int frameCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		
+		boolean passed = new PixyFrameCodecBenchmark(frameCount, seed).run();
+		
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * Creates a new PixyFrameCodecBenchmark and generates its frames
+	 *
+	 * @param frameCount The number of frames to generate
+	 * @param seed The seed to generate them from
+	 */
+	public PixyFrameCodecBenchmark(int frameCount, long seed)
+	{
+		System.out.println("PIXY FRAME CODEC: " + frameCount + " frames from seed " + seed);
+		
+		random = new Random(seed);
+		
+		xs = new double[OBJECTS];
+		ys = new double[OBJECTS];
+		dxs = new double[OBJECTS];
+		dys = new double[OBJECTS];
+		sizes = new int[OBJECTS];
+		visible = new boolean[OBJECTS];
+		order = new int[OBJECTS];
+		
+		for(int i = 0; i < OBJECTS; i++)
+		{
+			xs[i] = random.nextInt(Pixy.FRAME_WIDTH);
+			ys[i] = random.nextInt(Pixy.FRAME_HEIGHT);
+			sizes[i] = 5 + random.nextInt(60);
+			visible[i] = random.nextBoolean();
+		}
+		
+		frames = new PixyFrame[frameCount];
+		
+		double timestamp = 12.5;
+		
+		for(int i = 0; i < frameCount; i++)
+		{
+			//Frames come in every 20ms, give or take
+			timestamp += 0.02 + random.nextGaussian() * 0.0005;
+			
+			frames[i] = generate(timestamp);
+		}
+	}
+	
+	/**
+	 * Runs the round trip checks and the timings
+	 *
+	 * @return True if every frame round tripped exactly
+	 */
+	public boolean run()
+	{
+		PixyFrameEncoder encoder = new PixyFrameEncoder(MAX_BLOCKS);
+		ByteBuffer log = ByteBuffer.allocate(frames.length * encoder.getMaxEncodedSize());
+		
+		for(PixyFrame frame : frames)
+		{
+			encoder.encode(frame, log);
+		}
+		
+		log.flip();
+		
+		boolean passed = checkAll(log) & checkChunked(log) & checkMidStream(log);
+		
+		report(log.limit());
+		time(log);
+		
+		System.out.println(passed ? "PIXY FRAME CODEC PASSED" : "PIXY FRAME CODEC FAILED");
+		
+		return passed;
+	}
+	
+	/**
+	 * Decodes the whole log at once and compares every frame
+	 */
+	private boolean checkAll(ByteBuffer log)
+	{
+		PixyFrameDecoder decoder = new PixyFrameDecoder(MAX_BLOCKS);
+		ByteBuffer in = log.duplicate();
+		
+		for(int i = 0; i < frames.length; i++)
+		{
+			PixyFrame decoded = decoder.decode(in);
+			
+			if(!same(frames[i], decoded))
+			{
+				return fail("frame " + i + " didn't round trip");
+			}
+		}
+		
+		if(in.hasRemaining() || decoder.decode(in) != null)
+		{
+			return fail("data left over after the last frame");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Decodes the log a few bytes at a time, the way it would be read back from a file, and compares every frame
+	 */
+	private boolean checkChunked(ByteBuffer log)
+	{
+		PixyFrameDecoder decoder = new PixyFrameDecoder(MAX_BLOCKS);
+		ByteBuffer in = log.duplicate();
+		
+		int limit = 0;
+		int frame = 0;
+		
+		in.limit(0);
+		
+		while(frame < frames.length)
+		{
+			PixyFrame decoded = decoder.decode(in);
+			
+			if(decoded == null)
+			{
+				if(limit == log.limit())
+				{
+					return fail("ran out of data reading in chunks at frame " + frame);
+				}
+				
+				//Let a little more of the log in
+				limit = Math.min(log.limit(), limit + 1 + random.nextInt(40));
+				in.limit(limit);
+			}
+			else if(!same(frames[frame++], decoded))
+			{
+				return fail("frame " + (frame - 1) + " didn't round trip reading in chunks");
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Starts decoding right after the first frame, so everything up to the second keyframe has to be skipped
+	 */
+	private boolean checkMidStream(ByteBuffer log)
+	{
+		PixyFrameDecoder decoder = new PixyFrameDecoder(MAX_BLOCKS);
+		ByteBuffer in = log.duplicate();
+		
+		//Throw away the first frame to find where the second one starts
+		decoder.decode(in);
+		decoder.reset();
+		
+		int frame = PixyFrameEncoder.DEFAULT_KEYFRAME_INTERVAL;
+		
+		for(PixyFrame decoded = decoder.decode(in); decoded != null; decoded = decoder.decode(in))
+		{
+			if(frame >= frames.length || !same(frames[frame++], decoded))
+			{
+				return fail("frame " + (frame - 1) + " didn't round trip starting mid stream");
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Prints how big the log is compared to the other ways of getting the frames out
+	 */
+	private void report(int encodedBytes)
+	{
+		long blocks = 0;
+		long wireBytes = 0;
+		long textBytes = 0;
+		
+		for(PixyFrame frame : frames)
+		{
+			//The Pixy sends a sync word to start the frame, then a sync word, checksum and five or six words per block
+			wireBytes += 2;
+			
+			for(int i = 0; i < frame.getBlockCount(); i++)
+			{
+				wireBytes += frame.isColorCode(i) ? 16 : 14;
+				textBytes += frame.toDetection(i).toString().length() + 1;
+			}
+			
+			blocks += frame.getBlockCount();
+		}
+		
+		System.out.println("  " + blocks + " blocks, " + String.format("%.2f", (double) blocks / frames.length) + " per frame");
+		System.out.println("  Encoded: " + encodedBytes + " bytes, " + String.format("%.2f", (double) encodedBytes / frames.length) + " per frame");
+		System.out.println("  Pixy:    " + wireBytes + " bytes, " + String.format("%.1fx", (double) wireBytes / encodedBytes) + " the encoded size");
+		System.out.println("  Text:    " + textBytes + " bytes, " + String.format("%.1fx", (double) textBytes / encodedBytes) + " the encoded size");
+	}
+	
+	/**
+	 * Times encoding, decoding and toString() for every frame
+	 */
+	private void time(ByteBuffer log)
+	{
+		PixyFrameEncoder encoder = new PixyFrameEncoder(MAX_BLOCKS);
+		PixyFrameDecoder decoder = new PixyFrameDecoder(MAX_BLOCKS);
+		ByteBuffer out = ByteBuffer.allocate(log.limit());
+		StringBuilder text = new StringBuilder();
+		
+		long bestEncode = Long.MAX_VALUE;
+		long bestDecode = Long.MAX_VALUE;
+		long bestText = Long.MAX_VALUE;
+		
+		//Something has to use the results or the JIT might throw the work away
+		long checksum = 0;
+		
+		for(int run = 0; run < RUNS; run++)
+		{
+			encoder.reset();
+			out.clear();
+			
+			long start = System.nanoTime();
+			
+			for(PixyFrame frame : frames)
+			{
+				encoder.encode(frame, out);
+			}
+			
+			bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+			checksum += out.position();
+			
+			decoder.reset();
+			ByteBuffer in = log.duplicate();
+			
+			start = System.nanoTime();
+			
+			for(PixyFrame decoded = decoder.decode(in); decoded != null; decoded = decoder.decode(in))
+			{
+				checksum += decoded.getBlockCount();
+			}
+			
+			bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			
+			for(PixyFrame frame : frames)
+			{
+				text.setLength(0);
+				
+				for(int i = 0; i < frame.getBlockCount(); i++)
+				{
+					text.append(frame.toDetection(i).toString()).append('\n');
+				}
+				
+				checksum += text.length();
+			}
+			
+			bestText = Math.min(bestText, System.nanoTime() - start);
+		}
+		
+		System.out.println("  Encode:   " + String.format("%.0f", (double) bestEncode / frames.length) + " ns per frame");
+		System.out.println("  Decode:   " + String.format("%.0f", (double) bestDecode / frames.length) + " ns per frame");
+		System.out.println("  toString: " + String.format("%.0f", (double) bestText / frames.length) + " ns per frame");
+		
+		sink = checksum;
+	}
+	
+	/**
+	 * Moves every object along and builds a frame from the ones that are visible
+	 */
+	private PixyFrame generate(double timestamp)
+	{
+		PixyFrame frame = new PixyFrame(MAX_BLOCKS);
+		frame.clear(timestamp);
+		
+		int count = 0;
+		
+		for(int i = 0; i < OBJECTS; i++)
+		{
+			//Drift around, bouncing off the edges
+			dxs[i] = Math.max(-6, Math.min(6, dxs[i] + random.nextGaussian() * 0.3));
+			dys[i] = Math.max(-4, Math.min(4, dys[i] + random.nextGaussian() * 0.2));
+			
+			xs[i] += dxs[i];
+			ys[i] += dys[i];
+			
+			if(xs[i] < 0 || xs[i] >= Pixy.FRAME_WIDTH)
+			{
+				dxs[i] = -dxs[i];
+				xs[i] = Math.max(0, Math.min(Pixy.FRAME_WIDTH - 1, xs[i]));
+			}
+			
+			if(ys[i] < 0 || ys[i] >= Pixy.FRAME_HEIGHT)
+			{
+				dys[i] = -dys[i];
+				ys[i] = Math.max(0, Math.min(Pixy.FRAME_HEIGHT - 1, ys[i]));
+			}
+			
+			//Now and then an object comes into or goes out of view
+			if(random.nextInt(200) == 0)
+			{
+				visible[i] = !visible[i];
+			}
+			
+			if(visible[i])
+			{
+				order[count++] = i;
+			}
+		}
+		
+		//Largest first, the sizes don't change so this only reorders when objects come and go
+		for(int i = 1; i < count; i++)
+		{
+			for(int j = i; j > 0 && sizes[order[j]] > sizes[order[j - 1]]; j--)
+			{
+				int swap = order[j];
+				order[j] = order[j - 1];
+				order[j - 1] = swap;
+			}
+		}
+		
+		for(int i = 0; i < count; i++)
+		{
+			int object = order[i];
+			
+			//The last two objects are color codes, the rest use signatures 1 through 4
+			boolean colorCode = object >= OBJECTS - 2;
+			short signature = (short) (colorCode ? 010 + object : 1 + object % 4);
+			
+			//The edges of a block wobble a little even when the object is still
+			int width = sizes[object] + random.nextInt(3) - 1;
+			int height = sizes[object] * 2 / 3 + random.nextInt(3) - 1;
+			int angle = colorCode ? (int) (xs[object] - 160) : 0;
+			
+			frame.addBlock(colorCode ? Pixy.CC_SYNC_WORD : Pixy.NORMAL_SYNC_WORD, signature, (short) xs[object],
+					(short) ys[object], (short) width, (short) height, (short) angle);
+		}
+		
+		//Once in a while the connection drops out and an empty stale frame is made instead
+		if(random.nextInt(300) == 0)
+		{
+			frame.clear(timestamp);
+			frame.setStale(true);
+			
+			return frame;
+		}
+		
+		//Once in a while something the Pixy sends doesn't fit the image, those have to round trip too
+		if(random.nextInt(500) == 0)
+		{
+			frame.addBlock(Pixy.NORMAL_SYNC_WORD, (short) random.nextInt(), (short) random.nextInt(), (short) random.nextInt(),
+					(short) random.nextInt(), (short) random.nextInt(), (short) 0);
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Returns whether or not two frames hold the same blocks, timestamp and stale flag
+	 */
+	private static boolean same(PixyFrame expected, PixyFrame actual)
+	{
+		if(actual == null || actual.getBlockCount() != expected.getBlockCount() || actual.isStale() != expected.isStale()
+				|| Math.abs(actual.getTimestamp() - expected.getTimestamp()) > 1e-6)
+		{
+			return false;
+		}
+		
+		for(int i = 0; i < expected.getBlockCount(); i++)
+		{
+			if(actual.getSyncWord(i) != expected.getSyncWord(i) || actual.getSignatureNumber(i) != expected.getSignatureNumber(i)
+					|| actual.getCenterX(i) != expected.getCenterX(i) || actual.getCenterY(i) != expected.getCenterY(i)
+					|| actual.getObjectWidth(i) != expected.getObjectWidth(i) || actual.getObjectHeight(i) != expected.getObjectHeight(i)
+					|| actual.getAngle(i) != expected.getAngle(i))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Prints a failure
+	 *
+	 * @return False, so it can be returned straight from a check
+	 */
+	private static boolean fail(String message)
+	{
+		System.out.println("  FAILED: " + message);
+		
+		return false;
+	}
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import com.zephyr.internal.InMemoryComm;
+
+/**
+ * A fuzz and soak test for the Pixy parser. This feeds the parser an endless supply of Pixy data through an InMemoryComm,
+ * some of it valid, most of it mutated, truncated, shifted or outright garbage, and checks that every update finishes quickly
+ * and never throws. Along the way it keeps track of how many frames per second the parser gets through and how long updates
+ * take, and prints a report every minute.
+ *
+ * It doesn't need a RIO or a Pixy, run it from a desktop with:
+ *
+ * java com.zephyr.pixy.PixyParserSoak [seconds to run] [seed]
+ *
+ * If anything goes wrong the seed of the stream that caused it is printed, running again with that seed and
+ * a short duration reproduces it. The exit code is 0 if everything passed and 1 if anything failed.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyParserSoak {
+	
+	//How long to run if no time is given, in seconds
+	private static final double DEFAULT_DURATION = 3600;
+	
+	//The longest a single update is allowed to take, in nanoseconds, anything longer counts as a hang
+	private static final long CALL_LIMIT = 250000000L;
+	
+	//How often to print a report, in seconds
+	private static final double REPORT_INTERVAL = 60;
+	
+	//The maximum number of objects the Pixy under test allows
+	private static final int MAX_OBJECTS = 50;
+	
+	//The most updates made against a single stream before moving on to the next one
+	private static final int MAX_CALLS_PER_STREAM = 64;
+	
+	//The sync words as unsigned values, to make writing streams easier
+	private static final int NORMAL_SYNC = 0xAA55;
+	private static final int CC_SYNC = 0xAA56;
+	private static final int OUT_OF_SYNC = 0x55AA;
+	
+	/**
+	 * The different kinds of streams the parser is fed
+	 */
+	private enum StreamKind {
+		VALID, MUTATED, TRUNCATED, SHIFTED, GARBAGE, NON_SYNC, ZEROS
+	}
+	
+	//Where reports go, the parser's own messages are thrown away so they don't drown everything out
+	private PrintStream report;
+	
+	//Used to generate the streams, reseeded for every stream so any stream can be reproduced from its seed
+	private Random random;
+	
+	//The stream being fed to the parser
+	private byte[] stream;
+	private int length;
+	
+	//The parser under test
+	private InMemoryComm comm;
+	private Pixy pixy;
+	
+	//The stream currently being parsed and when the current update started (0 if there isn't one running), read by the watchdog
+	private volatile StreamKind currentKind;
+	private volatile long currentSeed;
+	private volatile long callStart;
+	
+	//Set when something has failed so everything stops
+	private volatile boolean failed;
+	
+	//The results so far
+	private LatencyHistogram latencies;
+	private long calls;
+	private long streams;
+	private long frames;
+	private long blocks;
+	
+	/**
+	 * Runs the soak test
+	 *
+	 * @param args The number of seconds to run for, and the seed to start from, both optional
+	 */
+	public static void main(String[] args)
+	{
+		double duration = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_DURATION;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		
+		boolean passed = new PixyParserSoak().run(duration, seed);
+		
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * Creates a new PixyParserSoak
+	 */
+	public PixyParserSoak()
+	{
+		report = System.out;
+		random = new Random();
+		
+		stream = new byte[65536];
+		
+		comm = new InMemoryComm();
+		pixy = new Pixy(comm, MAX_OBJECTS);
+		
+		//Timestamps only need to go up, so there's no need for the FPGA
+		pixy.setClock(() -> System.nanoTime() / 1e9);
+		
+		latencies = new LatencyHistogram();
+	}
+	
+	/**
+	 * Runs the soak test
+	 *
+	 * @param duration How long to run for, in seconds
+	 * @param firstSeed The seed of the first stream, each stream after it uses the next seed
+	 * @return True if every update finished in time without throwing
+	 */
+	public boolean run(double duration, long firstSeed)
+	{
+		report.println("PIXY PARSER SOAK: " + duration + "s starting at seed " + firstSeed);
+		
+		//Keep the parser's warnings out of the report, there are going to be a lot of them
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b)
+			{
+			}
+		}));
+		
+		long startTime = System.nanoTime();
+		long endTime = startTime + (long) (duration * 1e9);
+		
+		Thread worker = new Thread(() -> work(firstSeed, endTime), "PixyParserSoak");
+		worker.setDaemon(true);
+		worker.start();
+		
+		long nextReport = startTime + (long) (REPORT_INTERVAL * 1e9);
+		
+		try
+		{
+			//Watch the worker, if an update takes too long it's probably never going to finish so stop here
+			while(worker.isAlive())
+			{
+				worker.join(100);
+				
+				long started = callStart;
+				
+				if(started != 0 && System.nanoTime() - started > CALL_LIMIT)
+				{
+					fail("Update took longer than " + CALL_LIMIT / 1000000 + "ms, parser is stuck at:", worker.getStackTrace());
+					break;
+				}
+				
+				if(System.nanoTime() >= nextReport)
+				{
+					printReport(startTime);
+					nextReport += (long) (REPORT_INTERVAL * 1e9);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		System.setOut(report);
+		
+		printReport(startTime);
+		report.println(failed ? "PIXY PARSER SOAK FAILED" : "PIXY PARSER SOAK PASSED");
+		
+		return !failed;
+	}
+	
+	/**
+	 * Feeds streams to the parser until time runs out or something fails, runs on the worker thread
+	 */
+	private void work(long firstSeed, long endTime)
+	{
+		long seed = firstSeed;
+		
+		while(!failed && System.nanoTime() < endTime)
+		{
+			currentSeed = seed;
+			random.setSeed(seed);
+			
+			currentKind = StreamKind.values()[random.nextInt(StreamKind.values().length)];
+			generate(currentKind);
+			
+			comm.load(stream, length);
+			
+			try
+			{
+				//Keep updating until the parser stops making progress on the stream. The parser reads everything that's waiting
+				//at once and holds on to what it hasn't parsed yet, so progress is either reading more or parsing a frame.
+				for(int i = 0; i < MAX_CALLS_PER_STREAM; i++)
+				{
+					int remainingBefore = comm.remaining();
+					double lastTimestamp = pixy.getLatestFrame().getTimestamp();
+					
+					callStart = System.nanoTime();
+					
+					pixy.getAllDetectedObjects();
+					
+					long elapsed = System.nanoTime() - callStart;
+					callStart = 0;
+					
+					calls++;
+					latencies.record(elapsed);
+					
+					if(elapsed > CALL_LIMIT)
+					{
+						fail("Update took " + elapsed / 1000000 + "ms", null);
+						return;
+					}
+					
+					//A new timestamp means a frame was parsed
+					boolean parsed = pixy.getLatestFrame().getTimestamp() != lastTimestamp;
+					
+					if(parsed)
+					{
+						frames++;
+						blocks += pixy.getLatestFrame().getBlockCount();
+					}
+					
+					if(!parsed && comm.remaining() == remainingBefore)
+					{
+						break;
+					}
+				}
+			}
+			catch(Throwable t)
+			{
+				callStart = 0;
+				fail("Update threw " + t, t.getStackTrace());
+				return;
+			}
+			
+			streams++;
+			seed++;
+		}
+	}
+	
+	/**
+	 * Records a failure and prints what we know about it
+	 */
+	private void fail(String message, StackTraceElement[] stackTrace)
+	{
+		failed = true;
+		
+		report.println("FAILURE: " + message);
+		report.println("    stream " + currentKind + " seed " + currentSeed + " (" + length + " bytes)");
+		
+		if(stackTrace != null)
+		{
+			for(StackTraceElement element : stackTrace)
+			{
+				report.println("    at " + element);
+			}
+		}
+	}
+	
+	/**
+	 * Prints the throughput and latency so far
+	 */
+	private void printReport(long startTime)
+	{
+		double elapsed = (System.nanoTime() - startTime) / 1e9;
+		
+		report.printf("%8.0fs %12d streams %12d updates %10.0f updates/s %10.0f frames/s %8.1f blocks/frame " +
+				"p50 %6.1fus p99 %6.1fus p999 %6.1fus max %8.1fus%n",
+				elapsed, streams, calls, calls / elapsed, frames / elapsed, frames > 0 ? (double) blocks / frames : 0,
+				latencies.percentile(0.5) / 1000.0, latencies.percentile(0.99) / 1000.0,
+				latencies.percentile(0.999) / 1000.0, latencies.getMax() / 1000.0);
+	}
+	
+	/**
+	 * Fills the stream with a new stream of a specific kind
+	 */
+	private void generate(StreamKind kind)
+	{
+		length = 0;
+		
+		switch(kind)
+		{
+			case VALID:
+				//A few whole frames, sometimes with some idle zeros in front
+				putZeros(random.nextInt(4));
+				putFrames(1 + random.nextInt(4));
+				break;
+			case MUTATED:
+				//Whole frames with bits flipped, bytes dropped and duplicated, and sync words dropped in at random
+				putFrames(1 + random.nextInt(4));
+				mutate(1 + random.nextInt(8));
+				break;
+			case TRUNCATED:
+				//Whole frames that stop at a random point
+				putFrames(1 + random.nextInt(3));
+				length = random.nextInt(length + 1);
+				break;
+			case SHIFTED:
+				//Whole frames that start one byte off, so everything reads as 0x55AA
+				putByte(random.nextInt(256));
+				putFrames(1 + random.nextInt(4));
+				break;
+			case GARBAGE:
+				//Random bytes
+				int garbage = random.nextInt(4096);
+				
+				for(int i = 0; i < garbage; i++)
+				{
+					putByte(random.nextInt(256));
+				}
+				break;
+			case NON_SYNC:
+				//A long run of words that are never zero and never a sync word, this used to keep the parser looking forever
+				int words = random.nextInt(stream.length / 2);
+				
+				for(int i = 0; i < words; i++)
+				{
+					int word = 1 + random.nextInt(0xFFFE);
+					
+					if(word == NORMAL_SYNC || word == CC_SYNC || word == OUT_OF_SYNC)
+					{
+						word = 1;
+					}
+					
+					putWord(word);
+				}
+				break;
+			case ZEROS:
+				//Zeros with the odd sync word thrown in
+				int zeros = random.nextInt(2048);
+				
+				for(int i = 0; i < zeros; i++)
+				{
+					putWord(random.nextInt(64) == 0 ? NORMAL_SYNC : 0);
+				}
+				break;
+		}
+	}
+	
+	/**
+	 * Writes a number of whole, valid frames
+	 */
+	private void putFrames(int count)
+	{
+		for(int f = 0; f < count; f++)
+		{
+			int blockCount = random.nextInt(MAX_OBJECTS + 5);
+			
+			//Every frame starts with an extra sync word
+			putWord(NORMAL_SYNC);
+			
+			for(int b = 0; b < blockCount && length + 32 < stream.length; b++)
+			{
+				boolean colorCode = random.nextInt(5) == 0;
+				
+				int signature = colorCode ? 010 + random.nextInt(07770) : 1 + random.nextInt(7);
+				int x = random.nextInt(320);
+				int y = random.nextInt(200);
+				int width = 1 + random.nextInt(320);
+				int height = 1 + random.nextInt(200);
+				int angle = colorCode ? random.nextInt(361) - 180 : 0;
+				
+				putWord(colorCode ? CC_SYNC : NORMAL_SYNC);
+				putWord((signature + x + y + width + height + angle) & 0xFFFF);
+				putWord(signature);
+				putWord(x);
+				putWord(y);
+				putWord(width);
+				putWord(height);
+				
+				if(colorCode)
+				{
+					putWord(angle);
+				}
+			}
+			
+			//An empty frame is just the two sync words
+			if(blockCount == 0)
+			{
+				putWord(NORMAL_SYNC);
+			}
+		}
+	}
+	
+	/**
+	 * Damages the stream in a number of random places
+	 */
+	private void mutate(int count)
+	{
+		for(int m = 0; m < count && length > 0; m++)
+		{
+			int position = random.nextInt(length);
+			
+			switch(random.nextInt(4))
+			{
+				case 0:
+					//Flip a bit
+					stream[position] ^= 1 << random.nextInt(8);
+					break;
+				case 1:
+					//Drop a byte
+					System.arraycopy(stream, position + 1, stream, position, length - position - 1);
+					length--;
+					break;
+				case 2:
+					//Duplicate a byte
+					if(length < stream.length)
+					{
+						System.arraycopy(stream, position, stream, position + 1, length - position);
+						length++;
+					}
+					break;
+				default:
+					//Drop a sync word in the middle of something
+					if(position + 1 < length)
+					{
+						int sync = random.nextBoolean() ? NORMAL_SYNC : CC_SYNC;
+						
+						stream[position] = (byte) sync;
+						stream[position + 1] = (byte) (sync >> 8);
+					}
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * Writes a number of zero words
+	 */
+	private void putZeros(int count)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			putWord(0);
+		}
+	}
+	
+	/**
+	 * Writes a little endian word, silently dropping it if the stream is full
+	 */
+	private void putWord(int word)
+	{
+		putByte(word);
+		putByte(word >> 8);
+	}
+	
+	/**
+	 * Writes a byte, silently dropping it if the stream is full
+	 */
+	private void putByte(int value)
+	{
+		if(length < stream.length)
+		{
+			stream[length++] = (byte) value;
+		}
+	}
+	
+	/**
+	 * A histogram of latencies with roughly 6% precision. Each power of two is split into 16 buckets,
+	 * so it covers everything from a nanosecond to hours in a fixed amount of memory.
+	 */
+	private static class LatencyHistogram {
+		
+		//The number of buckets each power of two is split into, as a power of two
+		private static final int SUB_BITS = 4;
+		
+		//The number of values recorded in each bucket
+		private long[] counts;
+		
+		//The total number of values and the largest one
+		private long total;
+		private long max;
+		
+		LatencyHistogram()
+		{
+			counts = new long[64 << SUB_BITS];
+		}
+		
+		/**
+		 * Records a value
+		 */
+		void record(long value)
+		{
+			counts[bucketOf(Math.max(value, 0))]++;
+			total++;
+			max = Math.max(max, value);
+		}
+		
+		/**
+		 * Returns the largest value recorded
+		 */
+		long getMax()
+		{
+			return max;
+		}
+		
+		/**
+		 * Returns an upper bound on the value that a fraction of the values are at or below
+		 */
+		long percentile(double fraction)
+		{
+			long target = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			
+			for(int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				
+				if(seen >= target && seen > 0)
+				{
+					return Math.min(upperBoundOf(i), max);
+				}
+			}
+			
+			return max;
+		}
+		
+		/**
+		 * Works out which bucket a value goes in
+		 */
+		private static int bucketOf(long value)
+		{
+			//Small values get a bucket each
+			if(value < (1 << SUB_BITS))
+			{
+				return (int) value;
+			}
+			
+			//Otherwise, the position of the highest bit picks the power of two and the next few bits pick the bucket within it
+			int highBit = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (highBit - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+			
+			return ((highBit - SUB_BITS + 1) << SUB_BITS) + sub;
+		}
+		
+		/**
+		 * Works out the largest value that goes in a bucket
+		 */
+		private static long upperBoundOf(int bucket)
+		{
+			if(bucket < (1 << SUB_BITS))
+			{
+				return bucket;
+			}
+			
+			int highBit = (bucket >> SUB_BITS) + SUB_BITS - 1;
+			long sub = bucket & ((1 << SUB_BITS) - 1);
+			
+			return ((((1L << SUB_BITS) + sub + 1) << (highBit - SUB_BITS))) - 1;
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2017 Bradley Bickford
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation; 
+ * either version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package com.zephyr.pixy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.zephyr.internal.CommMiddleMan;
+import com.zephyr.internal.InMemoryComm;
+import com.zephyr.internal.WordDecoder;
+
+/**
+ * Compares reading Pixy data a word at a time against reading it in bulk, both for raw decoding through WordDecoder and for
+ * the whole parser, and checks that both ways get exactly the same words and frames. It also counts how many words the old hand
+ * rolled byte assembly would have gotten wrong.
+ *
+ * The bulk parser reads everything that's waiting in one go and decodes the whole frame out of that buffer in one pass, while
+ * the word at a time parser has to go back to the device for every word. The bulk parser has to come out faster, otherwise
+ * the benchmark fails.
+ *
+ * It doesn't need a RIO or a Pixy, run it from a desktop with:
+ *
+ * java com.zephyr.pixy.PixyWordDecoderBenchmark [frames] [seed]
+ *
+ * The exit code is 0 if both ways matched and reading in bulk was faster, and 1 if not.
+ *
+ * @author Bradley Bickford
+ *
+ */
+public class PixyWordDecoderBenchmark {
+	
+	//How many frames to use if no number is given
+	private static final int DEFAULT_FRAMES = 20000;
+	
+	//The maximum number of objects the Pixys under test allow
+	private static final int MAX_OBJECTS = 50;
+	
+	//How many times each timing is repeated, the best run is reported so the JIT has a chance to warm up
+	private static final int RUNS = 7;
+	
+	//Where the timing results end up, so the JIT can't throw the work away
+	private static volatile long sink;
+	
+	//The stream of frames, as the Pixy would send them over I2C or UART
+	private byte[] stream;
+	private int frameCount;
+	private long blockCount;
+	
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args The number of frames to use, and the seed to generate them from, both optional
+	 */
+	public static void main(String[] args)
+	{
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		
+		boolean passed = new PixyWordDecoderBenchmark(frames, seed).run();
+		
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * Creates a new PixyWordDecoderBenchmark and generates its stream
+	 *
+	 * @param frames The number of frames to generate
+	 * @param seed The seed to generate them from
+	 */
+	public PixyWordDecoderBenchmark(int frames, long seed)
+	{
+		System.out.println("PIXY WORD DECODER: " + frames + " frames from seed " + seed);
+		
+		Random random = new Random(seed);
+		ByteBuffer buffer = ByteBuffer.allocate(frames * (2 + MAX_OBJECTS * 16)).order(ByteOrder.LITTLE_ENDIAN);
+		
+		for(int frame = 0; frame < frames; frame++)
+		{
+			int blocks = 1 + random.nextInt(20);
+			
+			//The frame starts with an extra sync word
+			buffer.putShort(Pixy.NORMAL_SYNC_WORD);
+			
+			for(int block = 0; block < blocks; block++)
+			{
+				boolean colorCode = random.nextInt(4) == 0;
+				
+				//Plenty of these have a low byte over 127, which is what the old byte assembly got wrong
+				int signature = colorCode ? 010 + random.nextInt(0700) : 1 + random.nextInt(7);
+				int x = random.nextInt(Pixy.FRAME_WIDTH);
+				int y = random.nextInt(Pixy.FRAME_HEIGHT);
+				int width = 1 + random.nextInt(Pixy.FRAME_WIDTH);
+				int height = 1 + random.nextInt(Pixy.FRAME_HEIGHT);
+				int angle = colorCode ? random.nextInt(360) - 180 : 0;
+				
+				//A negative angle can bring the checksum around to 0, which the Pixy uses to say the frame is over
+				if((short) (signature + x + y + width + height + angle) == 0)
+				{
+					angle++;
+				}
+				
+				buffer.putShort(colorCode ? Pixy.CC_SYNC_WORD : Pixy.NORMAL_SYNC_WORD);
+				buffer.putShort((short) (signature + x + y + width + height + angle));
+				buffer.putShort((short) signature);
+				buffer.putShort((short) x);
+				buffer.putShort((short) y);
+				buffer.putShort((short) width);
+				buffer.putShort((short) height);
+				
+				if(colorCode)
+				{
+					buffer.putShort((short) angle);
+				}
+			}
+			
+			blockCount += blocks;
+		}
+		
+		//A block with a checksum of 0 ends the last frame, the way the Pixy says it has nothing else to send. That way the whole
+		//stream gets used up and nothing is left over to run into the start of the stream when it's loaded again.
+		buffer.putShort(Pixy.NORMAL_SYNC_WORD);
+		buffer.putShort((short) 0);
+		
+		//Only keep what was written
+		stream = Arrays.copyOf(buffer.array(), buffer.position());
+		frameCount = frames;
+	}
+	
+	/**
+	 * Runs the checks and the timings
+	 *
+	 * @return True if both ways got the same results and reading in bulk was faster
+	 */
+	public boolean run()
+	{
+		int wordCount = stream.length / 2;
+		
+		System.out.println("  " + stream.length + " bytes, " + blockCount + " blocks");
+		System.out.println("  Words the old byte assembly got wrong: " + countOldAssemblyErrors() + " of " + wordCount);
+		
+		boolean passed = checkDecode() & checkParse();
+		
+		timeDecode();
+		passed &= timeParse();
+		
+		System.out.println(passed ? "PIXY WORD DECODER PASSED" : "PIXY WORD DECODER FAILED");
+		
+		return passed;
+	}
+	
+	/**
+	 * Counts the words that the old "retVal |= data[0]" byte assembly would have put together wrong
+	 */
+	private int countOldAssemblyErrors()
+	{
+		int errors = 0;
+		
+		for(int i = 0; i + 1 < stream.length; i += 2)
+		{
+			short old = 0;
+			
+			old |= stream[i + 1] << 8;
+			old |= stream[i];
+			
+			if(old != WordDecoder.toWord(stream[i], stream[i + 1], ByteOrder.LITTLE_ENDIAN))
+			{
+				errors++;
+			}
+		}
+		
+		return errors;
+	}
+	
+	/**
+	 * Checks that decoding the whole stream at once gets the same words as reading them one at a time
+	 */
+	private boolean checkDecode()
+	{
+		int wordCount = stream.length / 2;
+		short[] bulk = new short[wordCount];
+		
+		new WordDecoder(ByteOrder.LITTLE_ENDIAN).decode(stream, 0, bulk, 0, wordCount);
+		
+		InMemoryComm comm = new InMemoryComm();
+		comm.load(stream, stream.length);
+		
+		for(int i = 0; i < wordCount; i++)
+		{
+			if(comm.readShort() != bulk[i])
+			{
+				System.out.println("  FAILED: word " + i + " decoded differently");
+				return false;
+			}
+		}
+		
+		//And one byte off, the way it is after getting back in sync
+		new WordDecoder(ByteOrder.LITTLE_ENDIAN).decode(stream, 1, bulk, 0, wordCount - 1);
+		
+		comm.load(stream, stream.length);
+		comm.readByte();
+		
+		for(int i = 0; i < wordCount - 1; i++)
+		{
+			if(comm.readShort() != bulk[i])
+			{
+				System.out.println("  FAILED: word " + i + " decoded differently a byte off");
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Checks that the parser gets the same frames reading in bulk as it does a word at a time, and that every block passes its checksum
+	 */
+	private boolean checkParse()
+	{
+		InMemoryComm bulkComm = new InMemoryComm();
+		InMemoryComm wordComm = new InMemoryComm();
+		
+		Pixy bulk = new Pixy(bulkComm, MAX_OBJECTS);
+		Pixy word = new Pixy(wordAtATime(wordComm), MAX_OBJECTS);
+		
+		bulkComm.load(stream, stream.length);
+		wordComm.load(stream, stream.length);
+		
+		long blocks = 0;
+		
+		for(int frame = 0; frame < frameCount; frame++)
+		{
+			bulk.getAllDetectedObjects();
+			word.getAllDetectedObjects();
+			
+			PixyFrame expected = word.getLatestFrame();
+			PixyFrame actual = bulk.getLatestFrame();
+			
+			if(actual.getBlockCount() != expected.getBlockCount())
+			{
+				System.out.println("  FAILED: frame " + frame + " has " + actual.getBlockCount() + " blocks instead of " + expected.getBlockCount());
+				return false;
+			}
+			
+			for(int i = 0; i < actual.getBlockCount(); i++)
+			{
+				if(actual.getSignatureNumber(i) != expected.getSignatureNumber(i) || actual.getCenterX(i) != expected.getCenterX(i)
+						|| actual.getCenterY(i) != expected.getCenterY(i) || actual.getObjectWidth(i) != expected.getObjectWidth(i)
+						|| actual.getObjectHeight(i) != expected.getObjectHeight(i) || actual.getAngle(i) != expected.getAngle(i))
+				{
+					System.out.println("  FAILED: block " + i + " of frame " + frame + " is different");
+					return false;
+				}
+			}
+			
+			blocks += actual.getBlockCount();
+		}
+		
+		//Every block was generated with a good checksum, so every one of them should have made it through
+		if(blocks != blockCount)
+		{
+			System.out.println("  FAILED: " + (blockCount - blocks) + " blocks were dropped");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Times decoding the whole stream a word at a time and all at once
+	 */
+	private void timeDecode()
+	{
+		int wordCount = stream.length / 2;
+		short[] words = new short[wordCount];
+		
+		WordDecoder decoder = new WordDecoder(ByteOrder.LITTLE_ENDIAN);
+		InMemoryComm comm = new InMemoryComm();
+		
+		long bestWord = Long.MAX_VALUE;
+		long bestBulk = Long.MAX_VALUE;
+		long checksum = 0;
+		
+		for(int run = 0; run < RUNS; run++)
+		{
+			comm.load(stream, stream.length);
+			
+			long start = System.nanoTime();
+			
+			for(int i = 0; i < wordCount; i++)
+			{
+				words[i] = comm.readShort();
+			}
+			
+			bestWord = Math.min(bestWord, System.nanoTime() - start);
+			checksum += words[wordCount - 1];
+			
+			start = System.nanoTime();
+			
+			decoder.decode(stream, 0, words, 0, wordCount);
+			
+			bestBulk = Math.min(bestBulk, System.nanoTime() - start);
+			checksum += words[wordCount - 1];
+		}
+		
+		sink = checksum;
+		
+		System.out.println("  Decode a word at a time: " + String.format("%.2f", (double) bestWord / wordCount) + " ns per word");
+		System.out.println("  Decode in one pass:      " + String.format("%.2f", (double) bestBulk / wordCount) + " ns per word");
+	}
+	
+	/**
+	 * Times the parser reading every frame a word at a time and in bulk
+	 *
+	 * @return True if reading in bulk was faster
+	 */
+	private boolean timeParse()
+	{
+		InMemoryComm bulkComm = new InMemoryComm();
+		InMemoryComm wordComm = new InMemoryComm();
+		
+		long bestWord = Long.MAX_VALUE;
+		long bestBulk = Long.MAX_VALUE;
+		
+		Pixy bulk = new Pixy(bulkComm, MAX_OBJECTS);
+		Pixy word = new Pixy(wordAtATime(wordComm), MAX_OBJECTS);
+		
+		for(int run = 0; run < RUNS; run++)
+		{
+			wordComm.load(stream, stream.length);
+			
+			long start = System.nanoTime();
+			
+			for(int frame = 0; frame < frameCount; frame++)
+			{
+				word.getAllDetectedObjects();
+			}
+			
+			bestWord = Math.min(bestWord, System.nanoTime() - start);
+			
+			bulkComm.load(stream, stream.length);
+			
+			start = System.nanoTime();
+			
+			for(int frame = 0; frame < frameCount; frame++)
+			{
+				bulk.getAllDetectedObjects();
+			}
+			
+			bestBulk = Math.min(bestBulk, System.nanoTime() - start);
+		}
+		
+		System.out.println("  Parse a word at a time:  " + String.format("%.0f", (double) bestWord / frameCount) + " ns per frame");
+		System.out.println("  Parse in bulk:           " + String.format("%.0f", (double) bestBulk / frameCount) + " ns per frame");
+		
+		if(bestBulk >= bestWord)
+		{
+			System.out.println("  FAILED: parsing in bulk wasn't any faster than a word at a time");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Wraps a device so it can only be read one word at a time, the way every device was read before readWords
+	 */
+	private static CommMiddleMan wordAtATime(CommMiddleMan comm)
+	{
+		return new CommMiddleMan() {
+			@Override
+			public Byte readByte()
+			{
+				return comm.readByte();
+			}
+			
+			@Override
+			public Short readShort()
+			{
+				return comm.readShort();
+			}
+			
+			@Override
+			public void write(byte[] bytes)
+			{
+				comm.write(bytes);
+			}
+			
+			@Override
+			public void write(ByteBuffer buffer)
+			{
+				comm.write(buffer);
+			}
+		};
+	}
+}